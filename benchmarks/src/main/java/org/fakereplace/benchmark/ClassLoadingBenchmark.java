@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of loading classes with the agent installed, compared to an uninstrumented JVM.
+ * <p>
+ * The <code>loadAll</code> benchmarks load a whole set of classes into a new class loader, which gives the
+ * total startup delta. The <code>loadOne</code> benchmarks give the average cost of loading a single class,
+ * run them with <code>-prof gc</code> to get the allocation rate per class.
+ * <p>
+ * The agent is loaded from <code>target/agent</code>, so the benchmarks must be run from the benchmarks directory:
+ * <pre>
+ * java -jar target/benchmarks.jar -prof gc
+ * </pre>
+ *
+ * @author Stuart Douglas
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ClassLoadingBenchmark {
+
+    private static final String AGENT = "-javaagent:target/agent/fakereplace.jar=packages=" + SyntheticClasses.PACKAGE + ",no-index=true,testRun";
+
+    @Param({"1000", "10000", "100000"})
+    public int classCount;
+
+    @Param({"SIMPLE", "COMPLEX"})
+    public String shape;
+
+    @Param({"URL", "CUSTOM"})
+    public String loaderType;
+
+    private Map<String, byte[]> classes;
+    private String[] classNames;
+    private Path classDirectory;
+    private URL[] classPath;
+
+    @Setup(Level.Trial)
+    public void generateClasses() throws IOException {
+        classes = SyntheticClasses.generate(classCount, SyntheticClasses.Shape.valueOf(shape));
+        classNames = classes.keySet().toArray(new String[classes.size()]);
+        if (loaderType.equals("URL")) {
+            classDirectory = Files.createTempDirectory("fakereplace-benchmark");
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                final Path file = classDirectory.resolve(entry.getKey().replace('.', File.separatorChar) + ".class");
+                Files.createDirectories(file.getParent());
+                Files.write(file, entry.getValue());
+            }
+            classPath = new URL[]{classDirectory.toUri().toURL()};
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteClasses() throws IOException {
+        if (classDirectory != null) {
+            try (Stream<Path> files = Files.walk(classDirectory)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    ClassLoader newLoader() {
+        if (classPath != null) {
+            return new URLClassLoader(classPath, ClassLoadingBenchmark.class.getClassLoader());
+        }
+        return new SyntheticClassLoader(ClassLoadingBenchmark.class.getClassLoader(), classes);
+    }
+
+    /**
+     * Loads the classes one at a time, using a new class loader every time the whole set has been loaded
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private ClassLoader loader;
+        private int index;
+
+        Class<?> next(ClassLoadingBenchmark benchmark) throws ClassNotFoundException {
+            if (loader == null || index == benchmark.classNames.length) {
+                loader = benchmark.newLoader();
+                index = 0;
+            }
+            return loader.loadClass(benchmark.classNames[index++]);
+        }
+    }
+
+    private int loadAll() throws ClassNotFoundException {
+        final ClassLoader loader = newLoader();
+        int hash = 0;
+        for (String name : classNames) {
+            hash += loader.loadClass(name).hashCode();
+        }
+        return hash;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Fork(1)
+    public int loadAllBaseline() throws ClassNotFoundException {
+        return loadAll();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Fork(value = 1, jvmArgsAppend = AGENT)
+    public int loadAllInstrumented() throws ClassNotFoundException {
+        return loadAll();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Fork(1)
+    public Class<?> loadOneBaseline(Cursor cursor) throws ClassNotFoundException {
+        return cursor.next(this);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Fork(value = 1, jvmArgsAppend = AGENT)
+    public Class<?> loadOneInstrumented(Cursor cursor) throws ClassNotFoundException {
+        return cursor.next(this);
+    }
+}
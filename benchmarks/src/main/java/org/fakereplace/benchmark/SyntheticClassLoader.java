@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.benchmark;
+
+import java.util.Map;
+
+/**
+ * A child first class loader that defines classes from a map of class bytes, in the same way as a typical
+ * framework class loader would.
+ * <p>
+ * The name of this class matters, the agent instruments the loadClass methods of class loaders based on their name.
+ *
+ * @author Stuart Douglas
+ */
+final class SyntheticClassLoader extends ClassLoader {
+
+    private final Map<String, byte[]> classes;
+
+    SyntheticClassLoader(ClassLoader parent, Map<String, byte[]> classes) {
+        super(parent);
+        this.classes = classes;
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (!classes.containsKey(name)) {
+            return super.loadClass(name, resolve);
+        }
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> c = findLoadedClass(name);
+            if (c == null) {
+                c = findClass(name);
+            }
+            if (resolve) {
+                resolveClass(c);
+            }
+            return c;
+        }
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        final byte[] data = classes.get(name);
+        if (data == null) {
+            throw new ClassNotFoundException(name);
+        }
+        return defineClass(name, data, 0, data.length);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.DuplicateMemberException;
+import javassist.bytecode.FieldInfo;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+/**
+ * Generates sets of synthetic classes for the class loading benchmarks.
+ *
+ * @author Stuart Douglas
+ */
+final class SyntheticClasses {
+
+    /**
+     * The package of the generated classes. This is passed to the agent as the hot replaceable package, so the
+     * benchmarks measure the most expensive instrumentation path.
+     */
+    static final String PACKAGE = "bench.generated";
+
+    enum Shape {
+        /**
+         * a single field with a getter
+         */
+        SIMPLE(1, 0),
+        /**
+         * a class that looks more like an entity, with accessors for every field and some reflective calls
+         * that need to be rewritten by the agent
+         */
+        COMPLEX(10, 5);
+
+        private final int fields;
+        private final int reflectionMethods;
+
+        Shape(int fields, int reflectionMethods) {
+            this.fields = fields;
+            this.reflectionMethods = reflectionMethods;
+        }
+    }
+
+    private SyntheticClasses() {
+
+    }
+
+    static Map<String, byte[]> generate(int count, Shape shape) {
+        final Map<String, byte[]> classes = new LinkedHashMap<>();
+        for (int i = 0; i < count; ++i) {
+            final String name = PACKAGE + ".Synthetic" + i;
+            classes.put(name, generate(name, shape));
+        }
+        return classes;
+    }
+
+    private static byte[] generate(String name, Shape shape) {
+        try {
+            final ClassFile file = new ClassFile(false, name, "java.lang.Object");
+            file.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.SUPER);
+            addConstructor(file);
+            for (int i = 0; i < shape.fields; ++i) {
+                addField(file, "field" + i);
+            }
+            for (int i = 0; i < shape.reflectionMethods; ++i) {
+                addReflectionMethod(file, "reflect" + i, "field" + i % shape.fields);
+            }
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            file.write(new DataOutputStream(bytes));
+            return bytes.toByteArray();
+        } catch (IOException | BadBytecode | DuplicateMemberException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void addConstructor(ClassFile file) throws BadBytecode, DuplicateMemberException {
+        final Bytecode b = new Bytecode(file.getConstPool());
+        b.addAload(0);
+        b.addInvokespecial("java.lang.Object", "<init>", "()V");
+        b.add(Opcode.RETURN);
+        addMethod(file, "<init>", "()V", b, 1);
+    }
+
+    private static void addField(ClassFile file, String fieldName) throws BadBytecode, DuplicateMemberException {
+        final FieldInfo field = new FieldInfo(file.getConstPool(), fieldName, "I");
+        field.setAccessFlags(AccessFlag.PRIVATE);
+        file.addField(field);
+
+        final String property = Character.toUpperCase(fieldName.charAt(0)) + fieldName.substring(1);
+        Bytecode b = new Bytecode(file.getConstPool());
+        b.addAload(0);
+        b.addGetfield(file.getName(), fieldName, "I");
+        b.add(Opcode.IRETURN);
+        addMethod(file, "get" + property, "()I", b, 1);
+
+        b = new Bytecode(file.getConstPool());
+        b.addAload(0);
+        b.addIload(1);
+        b.addPutfield(file.getName(), fieldName, "I");
+        b.add(Opcode.RETURN);
+        addMethod(file, "set" + property, "(I)V", b, 2);
+    }
+
+    private static void addReflectionMethod(ClassFile file, String methodName, String fieldName) throws BadBytecode, DuplicateMemberException {
+        final Bytecode b = new Bytecode(file.getConstPool());
+        b.addAload(0);
+        b.addInvokevirtual("java.lang.Object", "getClass", "()Ljava/lang/Class;");
+        b.add(Opcode.DUP);
+        b.addInvokevirtual("java.lang.Class", "getDeclaredMethods", "()[Ljava/lang/reflect/Method;");
+        b.add(Opcode.POP);
+        b.addLdc(fieldName);
+        b.addInvokevirtual("java.lang.Class", "getDeclaredField", "(Ljava/lang/String;)Ljava/lang/reflect/Field;");
+        b.add(Opcode.ARETURN);
+        addMethod(file, methodName, "()Ljava/lang/reflect/Field;", b, 1);
+    }
+
+    private static void addMethod(ClassFile file, String name, String descriptor, Bytecode code, int maxLocals) throws BadBytecode, DuplicateMemberException {
+        final MethodInfo method = new MethodInfo(file.getConstPool(), name, descriptor);
+        method.setAccessFlags(AccessFlag.PUBLIC);
+        final CodeAttribute attribute = code.toCodeAttribute();
+        attribute.setMaxLocals(maxLocals);
+        attribute.computeMaxStack();
+        method.setCodeAttribute(attribute);
+        file.addMethod(method);
+    }
+}
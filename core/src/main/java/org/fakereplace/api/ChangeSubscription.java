@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.api;
+
+import java.lang.annotation.Annotation;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Describes the changes a {@link ClassChangeAware} listener is interested in. A listener is only notified if at
+ * least one changed or added class matches its subscription, and is only given the classes that match.
+ * <p>
+ * A class matches if it has any of the class level annotations, is a subtype of any of the types, or is in any of
+ * the packages (or their sub packages) of the subscription. A subscription with no annotations, types or packages
+ * matches every class. Supertypes of new classes are only checked as far as their direct superclass and
+ * interfaces, as the rest of their hierarchy may not be loaded yet.
+ *
+ * @author Stuart Douglas
+ */
+public final class ChangeSubscription {
+
+    /**
+     * A subscription to all changes
+     */
+    public static final ChangeSubscription ALL = new ChangeSubscription(Collections.emptySet(), Collections.emptySet(), Collections.emptySet(), false);
+
+    private final Set<String> annotations;
+    private final Set<String> supertypes;
+    private final Set<String> packages;
+    private final boolean ignoreBodyOnlyChanges;
+
+    private ChangeSubscription(Set<String> annotations, Set<String> supertypes, Set<String> packages, boolean ignoreBodyOnlyChanges) {
+        this.annotations = annotations;
+        this.supertypes = supertypes;
+        this.packages = packages;
+        this.ignoreBodyOnlyChanges = ignoreBodyOnlyChanges;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return the class names of the annotations of interest
+     */
+    public Set<String> getAnnotations() {
+        return annotations;
+    }
+
+    /**
+     * @return the class names of the supertypes of interest
+     */
+    public Set<String> getSupertypes() {
+        return supertypes;
+    }
+
+    public Set<String> getPackages() {
+        return packages;
+    }
+
+    /**
+     * @return <code>true</code> if classes that only had method bodies changed should not be passed to the listener
+     */
+    public boolean isIgnoreBodyOnlyChanges() {
+        return ignoreBodyOnlyChanges;
+    }
+
+    /**
+     * @return <code>true</code> if this subscription matches classes regardless of their annotations, types and packages
+     */
+    public boolean isUnfiltered() {
+        return annotations.isEmpty() && supertypes.isEmpty() && packages.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeSubscription{" +
+                "annotations=" + annotations +
+                ", supertypes=" + supertypes +
+                ", packages=" + packages +
+                ", ignoreBodyOnlyChanges=" + ignoreBodyOnlyChanges +
+                '}';
+    }
+
+    public static final class Builder {
+
+        private final Set<String> annotations = new HashSet<>();
+        private final Set<String> supertypes = new HashSet<>();
+        private final Set<String> packages = new HashSet<>();
+        private boolean ignoreBodyOnlyChanges;
+
+        private Builder() {
+        }
+
+        public Builder annotatedWith(Class<? extends Annotation> annotation) {
+            return annotatedWith(annotation.getName());
+        }
+
+        public Builder annotatedWith(String annotationClassName) {
+            annotations.add(annotationClassName);
+            return this;
+        }
+
+        public Builder subtypeOf(Class<?> type) {
+            return subtypeOf(type.getName());
+        }
+
+        public Builder subtypeOf(String className) {
+            supertypes.add(className);
+            return this;
+        }
+
+        public Builder inPackage(String packageName) {
+            packages.add(packageName);
+            return this;
+        }
+
+        public Builder ignoreBodyOnlyChanges() {
+            ignoreBodyOnlyChanges = true;
+            return this;
+        }
+
+        public ChangeSubscription build() {
+            return new ChangeSubscription(copy(annotations), copy(supertypes), copy(packages), ignoreBodyOnlyChanges);
+        }
+
+        private static Set<String> copy(Set<String> set) {
+            if (set.isEmpty()) {
+                return Collections.emptySet();
+            }
+            return Collections.unmodifiableSet(new HashSet<>(set));
+        }
+    }
+}
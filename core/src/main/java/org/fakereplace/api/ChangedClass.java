@@ -38,4 +38,13 @@ public interface ChangedClass extends AnnotationTarget {
      * @return The Class object of the changed class. Any changes will show up in reflective operations from instrumented code
      */
     Class<?> getChangedClass();
+
+    /**
+     *
+     * @return <code>true</code> if only method bodies were changed, so the members and annotations of the class are
+     * the same as they were before it was replaced. Implementations that can't tell return <code>false</code>.
+     */
+    default boolean isBodyOnlyChange() {
+        return false;
+    }
 }
@@ -17,16 +17,41 @@
 
 package org.fakereplace.api;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 /**
  * interface that should be implemented by classes that with to be notified of
  * class changes.
- *
+ * <p>
+ * Listeners that do not depend on each other may be notified at the same time
+ * from different threads.
+ * <p>
+ * The redefinition waits for its listeners for at most the time given by the
+ * <code>org.fakereplace.notification-timeout</code> system property (60 seconds by default).
+ * A listener that is still running after that keeps running in the background, so it
+ * can overlap with the next redefinition and with the notification of that redefinition.
  *
  * @author stuart
  */
 public interface ClassChangeAware {
 
     void afterChange(List<ChangedClass> changed, List<NewClassData> added);
+
+    /**
+     * Returns the class names of the listeners that must have finished handling a change before
+     * this listener is notified. Names of listeners that are not registered are ignored.
+     */
+    default Set<String> getDependencies() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * Returns the changes this listener is interested in. The listener is not notified at all if none of the changed
+     * or added classes match, and otherwise it is only passed the ones that do.
+     */
+    default ChangeSubscription getSubscription() {
+        return ChangeSubscription.ALL;
+    }
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.api;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.fakereplace.data.ClassDataStore;
+import org.fakereplace.reflection.AnnotationReflection;
+import org.fakereplace.reflection.ConstructorReflection;
+import org.fakereplace.reflection.FieldReflection;
+import org.fakereplace.reflection.MethodReflection;
+
+/**
+ * An immutable view of the members and annotations of a class, as they are seen by instrumented code. This
+ * allows integrations that need to scan a whole class to do it in a single pass, instead of making a
+ * separate reflective call for every member.
+ * <p>
+ * Snapshots are cached per class, and are rebuilt the first time they are requested after any class has been
+ * replaced.
+ * <p>
+ * Unlike the JDK reflection methods, which return a fresh copy of every member on each call, a snapshot hands
+ * the same {@link Method}, {@link Field} and {@link Constructor} instances to every caller. Calling
+ * {@link java.lang.reflect.AccessibleObject#setAccessible(boolean)} on one of them makes it accessible for every
+ * other user of the snapshot, so code that needs to change accessibility should look up its own copy of the
+ * member through normal reflection instead.
+ *
+ * @author Stuart Douglas
+ */
+public final class ClassMetadataSnapshot {
+
+    private static final ClassValue<ClassMetadataSnapshot> SNAPSHOTS = new ClassValue<ClassMetadataSnapshot>() {
+        @Override
+        protected ClassMetadataSnapshot computeValue(Class<?> type) {
+            return new ClassMetadataSnapshot(type);
+        }
+    };
+
+    private final Class<?> type;
+    private final int generation;
+    private final List<Method> methods;
+    private final List<Method> declaredMethods;
+    private final List<Field> fields;
+    private final List<Field> declaredFields;
+    private final List<Constructor<?>> constructors;
+    private final List<Constructor<?>> declaredConstructors;
+    private final List<Annotation> annotations;
+    private final List<Annotation> declaredAnnotations;
+    private final Map<AnnotatedElement, List<Annotation>> memberAnnotations;
+
+    private ClassMetadataSnapshot(Class<?> type) {
+        //read the generation first, if a class is replaced while we are building the snapshot it will just be rebuilt
+        this.generation = ClassDataStore.instance().getReplacementGeneration();
+        this.type = type;
+        this.methods = list(MethodReflection.getMethods(type));
+        this.declaredMethods = list(MethodReflection.getDeclaredMethods(type));
+        this.fields = list(FieldReflection.getFields(type));
+        this.declaredFields = list(FieldReflection.getDeclaredFields(type));
+        this.constructors = list(ConstructorReflection.getConstructors(type));
+        this.declaredConstructors = list(ConstructorReflection.getDeclaredConstructors(type));
+        this.annotations = list(AnnotationReflection.getAnnotations(type));
+        this.declaredAnnotations = list(AnnotationReflection.getDeclaredAnnotations(type));
+
+        final Map<AnnotatedElement, List<Annotation>> memberAnnotations = new HashMap<>();
+        for (Method method : declaredMethods) {
+            memberAnnotations.put(method, list(AnnotationReflection.getDeclaredAnnotations(method)));
+        }
+        for (Field field : declaredFields) {
+            memberAnnotations.put(field, list(AnnotationReflection.getDeclaredAnnotations(field)));
+        }
+        for (Constructor<?> constructor : declaredConstructors) {
+            memberAnnotations.put(constructor, list(AnnotationReflection.getDeclaredAnnotations(constructor)));
+        }
+        this.memberAnnotations = memberAnnotations;
+    }
+
+    /**
+     * Returns the snapshot for the given class, building a new one if any class has been replaced since the
+     * last snapshot was built.
+     */
+    public static ClassMetadataSnapshot of(Class<?> clazz) {
+        ClassMetadataSnapshot snapshot = SNAPSHOTS.get(clazz);
+        if (!snapshot.isCurrent()) {
+            SNAPSHOTS.remove(clazz);
+            snapshot = SNAPSHOTS.get(clazz);
+        }
+        return snapshot;
+    }
+
+    @SafeVarargs
+    private static <T> List<T> list(T... elements) {
+        if (elements.length == 0) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(elements));
+    }
+
+    /**
+     * @return <code>false</code> if a class has been replaced since this snapshot was built
+     */
+    public boolean isCurrent() {
+        return generation == ClassDataStore.instance().getReplacementGeneration();
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    public List<Method> getMethods() {
+        return methods;
+    }
+
+    public List<Method> getDeclaredMethods() {
+        return declaredMethods;
+    }
+
+    public List<Field> getFields() {
+        return fields;
+    }
+
+    public List<Field> getDeclaredFields() {
+        return declaredFields;
+    }
+
+    public List<Constructor<?>> getConstructors() {
+        return constructors;
+    }
+
+    public List<Constructor<?>> getDeclaredConstructors() {
+        return declaredConstructors;
+    }
+
+    /**
+     * @return the class level annotations, including inherited annotations
+     */
+    public List<Annotation> getAnnotations() {
+        return annotations;
+    }
+
+    public List<Annotation> getDeclaredAnnotations() {
+        return declaredAnnotations;
+    }
+
+    public List<Annotation> getAnnotations(Method method) {
+        return memberAnnotations(method);
+    }
+
+    public List<Annotation> getAnnotations(Field field) {
+        return memberAnnotations(field);
+    }
+
+    public List<Annotation> getAnnotations(Constructor<?> constructor) {
+        return memberAnnotations(constructor);
+    }
+
+    private List<Annotation> memberAnnotations(AnnotatedElement member) {
+        final List<Annotation> result = memberAnnotations.get(member);
+        if (result == null) {
+            // not a declared member of this class
+            return list(AnnotationReflection.getDeclaredAnnotations(member));
+        }
+        return result;
+    }
+}
@@ -25,9 +25,15 @@ package org.fakereplace.core;
 public enum AgentOption {
     INDEX_FILE("index-file", "fakereplace.index"),
     DUMP_DIR("dump-dir"),
+    DUMP_PACKAGES("dump-packages"),
     PACKAGES("packages"),
     LOG("log"),
-    NO_INDEX("no-index")
+    NO_INDEX("no-index"),
+    LAZY_REFLECTION("lazy-reflection"),
+    OFF_HEAP_METADATA("off-heap-metadata"),
+    METRICS("metrics"),
+    METRICS_LOG_INTERVAL("metrics-log-interval"),
+    JFR("jfr")
     ;
 
     private final String key;
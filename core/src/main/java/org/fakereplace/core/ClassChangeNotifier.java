@@ -17,47 +17,115 @@
 
 package org.fakereplace.core;
 
-import java.util.HashSet;
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.fakereplace.api.ChangeSubscription;
 import org.fakereplace.api.ChangedClass;
 import org.fakereplace.api.ClassChangeAware;
 import org.fakereplace.api.NewClassData;
 import org.fakereplace.data.ClassLoaderData;
+import org.fakereplace.logging.Logger;
+import org.fakereplace.metrics.FlightRecorderEvents;
+import org.fakereplace.metrics.Metrics;
+import org.fakereplace.reflection.AnnotationReflection;
+import org.fakereplace.replacement.notification.ChangedClassImpl;
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.ClassFile;
 
+/**
+ * Notifies the registered {@link ClassChangeAware} listeners of class changes.
+ * <p>
+ * Listeners are run on a thread pool, and each listener is started as soon as all the listeners it depends on have
+ * finished, so independent listeners run at the same time. The notifying thread waits for all of them, up to the
+ * configured timeout. Listeners that are still running when the timeout expires are left to finish in the
+ * background, see {@link ClassChangeAware}.
+ * <p>
+ * The changes are indexed once per notification, so that listeners with a {@link ChangeSubscription} can be given
+ * just the changes they are interested in, or skipped entirely if there are none.
+ *
+ * @author Stuart Douglas
+ */
 public class ClassChangeNotifier {
 
+    private static final long NOTIFICATION_TIMEOUT = Long.getLong("org.fakereplace.notification-timeout", 60000);
+
+    private static final Logger log = Logger.getLogger(ClassChangeNotifier.class);
+
     private static final ClassChangeNotifier INSTANCE = new ClassChangeNotifier();
 
     private static final ThreadLocal<Boolean> NOTIFICATION_IN_PROGRESS = ThreadLocal.withInitial(() -> false);
 
     private final ClassLoaderData.AttachmentKey<Set<ClassChangeAware>> classChangeAwares = new ClassLoaderData.AttachmentKey<>();
 
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(task -> {
+        final Thread thread = new Thread(task, "Fakereplace change notifier " + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public void add(ClassChangeAware aware) {
         ClassLoaderData cd = ClassLoaderData.get(aware.getClass().getClassLoader());
-        Set<ClassChangeAware> set = cd.getAttachment(classChangeAwares);
-        if(set == null) {
-            cd.putAttachment(classChangeAwares, set = new HashSet<>());
+        cd.getOrCreateAttachment(classChangeAwares, () -> Collections.newSetFromMap(new ConcurrentHashMap<>())).add(aware);
+    }
+
+    /**
+     * Unregisters a listener. A notification that is already running may still call it.
+     */
+    public void remove(ClassChangeAware aware) {
+        final ClassLoaderData cd = ClassLoaderData.getIfPresent(aware.getClass().getClassLoader());
+        if (cd == null) {
+            return;
+        }
+        final Set<ClassChangeAware> awares = cd.getAttachment(classChangeAwares);
+        if (awares != null) {
+            awares.remove(aware);
         }
-        set.add(aware);
     }
 
-     public void afterChange(List<ChangedClass> changed, List<NewClassData> newClasses) {
+    public void afterChange(List<ChangedClass> changed, List<NewClassData> newClasses) {
         if (!NOTIFICATION_IN_PROGRESS.get()) {
             NOTIFICATION_IN_PROGRESS.set(true);
+            final long start = Metrics.start();
             try {
-                Class<?>[] a = new Class[0];
+                final List<ClassChangeAware> listeners = new ArrayList<>();
                 for (Set<ClassChangeAware> c : ClassLoaderData.allAttachment(classChangeAwares)) {
-                    for (ClassChangeAware i : c) {
-                        try {
-                            i.afterChange(changed, newClasses);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
+                    listeners.addAll(c);
+                }
+                if (listeners.isEmpty()) {
+                    return;
+                }
+                // the listeners may look at these from several threads at once
+                final Notification notification = new Notification(Collections.unmodifiableList(changed), Collections.unmodifiableList(newClasses), listeners);
+                final CompletableFuture<?> all = CompletableFuture.allOf(notification.schedule());
+                try {
+                    all.get(NOTIFICATION_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    log.error("Class change listeners did not finish within " + NOTIFICATION_TIMEOUT + "ms, they will continue in the background");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    // listener failures are logged as they happen
                 }
             } finally {
+                Metrics.record(Metrics.NOTIFICATION, start);
                 NOTIFICATION_IN_PROGRESS.set(false);
             }
         }
@@ -66,4 +134,209 @@ public class ClassChangeNotifier {
     public static ClassChangeNotifier instance() {
         return INSTANCE;
     }
+
+    /**
+     * A single notification run, which links the listeners up according to their dependencies
+     */
+    private final class Notification {
+
+        private final List<ChangedClass> changed;
+        private final List<NewClassData> newClasses;
+        private final List<ClassChangeAware> listeners;
+        private final Map<String, List<ClassChangeAware>> listenersByName = new HashMap<>();
+        private final Map<ClassChangeAware, CompletableFuture<Void>> scheduled = new IdentityHashMap<>();
+        private final Set<ClassChangeAware> scheduling = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        private ChangeIndex index;
+
+        private Notification(List<ChangedClass> changed, List<NewClassData> newClasses, List<ClassChangeAware> listeners) {
+            this.changed = changed;
+            this.newClasses = newClasses;
+            this.listeners = listeners;
+            for (ClassChangeAware listener : listeners) {
+                listenersByName.computeIfAbsent(listener.getClass().getName(), k -> new ArrayList<>()).add(listener);
+            }
+        }
+
+        CompletableFuture<?>[] schedule() {
+            final CompletableFuture<?>[] result = new CompletableFuture[listeners.size()];
+            for (int i = 0; i < result.length; ++i) {
+                result[i] = schedule(listeners.get(i));
+            }
+            return result;
+        }
+
+        private CompletableFuture<Void> schedule(ClassChangeAware listener) {
+            CompletableFuture<Void> future = scheduled.get(listener);
+            if (future != null) {
+                return future;
+            }
+            scheduling.add(listener);
+            final List<CompletableFuture<Void>> dependencies = new ArrayList<>();
+            for (String name : listener.getDependencies()) {
+                final List<ClassChangeAware> named = listenersByName.get(name);
+                if (named == null) {
+                    continue;
+                }
+                for (ClassChangeAware dependency : named) {
+                    if (scheduling.contains(dependency)) {
+                        log.error("Ignoring circular dependency of " + listener.getClass().getName() + " on " + name);
+                    } else {
+                        dependencies.add(schedule(dependency));
+                    }
+                }
+            }
+            scheduling.remove(listener);
+            // a failed listener should not stop the ones that depend on it, so only wait for completion
+            final CompletableFuture<Object> ready = CompletableFuture.allOf(dependencies.toArray(new CompletableFuture[dependencies.size()]))
+                    .handle((v, t) -> null);
+
+            final ChangeSubscription subscription = listener.getSubscription();
+            if (subscription == ChangeSubscription.ALL) {
+                future = ready.thenRunAsync(() -> run(listener, changed, newClasses), executor);
+            } else {
+                if (index == null) {
+                    index = new ChangeIndex(changed, newClasses);
+                }
+                final BitSet matches = index.match(subscription);
+                if (matches.isEmpty()) {
+                    future = ready.thenRun(() -> {
+                    });
+                } else {
+                    final List<ChangedClass> matchedChanges = new ArrayList<>();
+                    final List<NewClassData> matchedClasses = new ArrayList<>();
+                    for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+                        if (i < changed.size()) {
+                            matchedChanges.add(changed.get(i));
+                        } else {
+                            matchedClasses.add(newClasses.get(i - changed.size()));
+                        }
+                    }
+                    future = ready.thenRunAsync(() -> run(listener, Collections.unmodifiableList(matchedChanges), Collections.unmodifiableList(matchedClasses)), executor);
+                }
+            }
+            scheduled.put(listener, future);
+            return future;
+        }
+
+        private void run(ClassChangeAware listener, List<ChangedClass> changes, List<NewClassData> classes) {
+            final Thread thread = Thread.currentThread();
+            final ClassLoader old = thread.getContextClassLoader();
+            thread.setContextClassLoader(contextClassLoader);
+            NOTIFICATION_IN_PROGRESS.set(true);
+            final long start = Metrics.start();
+            final Object event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.CLASS_CHANGE_LISTENER);
+            try {
+                listener.afterChange(changes, classes);
+            } catch (Exception e) {
+                log.error("Class change listener " + listener.getClass().getName() + " failed", e);
+            } finally {
+                Metrics.record(listener.getClass().getName(), start);
+                if (event != null) {
+                    FlightRecorderEvents.commit(event, listener.getClass().getName(), changes.size(), classes.size());
+                }
+                NOTIFICATION_IN_PROGRESS.set(false);
+                thread.setContextClassLoader(old);
+            }
+        }
+    }
+
+    /**
+     * Indexes the changed and added classes by annotation, supertype and package. Changed classes are numbered
+     * first, followed by the added classes.
+     */
+    private static final class ChangeIndex {
+
+        private final int count;
+        private final Map<String, BitSet> byAnnotation = new HashMap<>();
+        private final Map<String, BitSet> bySupertype = new HashMap<>();
+        private final Map<String, BitSet> byPackage = new HashMap<>();
+        private final BitSet bodyOnly = new BitSet();
+
+        private ChangeIndex(List<ChangedClass> changed, List<NewClassData> newClasses) {
+            count = changed.size() + newClasses.size();
+            for (int i = 0; i < changed.size(); ++i) {
+                final ChangedClass change = changed.get(i);
+                final Class<?> clazz = change.getChangedClass();
+                if (change.isBodyOnlyChange()) {
+                    bodyOnly.set(i);
+                }
+                for (Annotation annotation : AnnotationReflection.getAnnotations(clazz)) {
+                    add(byAnnotation, annotation.annotationType().getName(), i);
+                }
+                if (change instanceof ChangedClassImpl) {
+                    // include annotations that have been removed
+                    for (Class<? extends Annotation> type : ((ChangedClassImpl) change).getChangedAnnotationTypes()) {
+                        add(byAnnotation, type.getName(), i);
+                    }
+                }
+                for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+                    add(bySupertype, c.getName(), i);
+                    addInterfaces(c, i);
+                }
+                addPackages(clazz.getName(), i);
+            }
+            for (int j = 0; j < newClasses.size(); ++j) {
+                final int i = changed.size() + j;
+                final ClassFile file = newClasses.get(j).getClassFile();
+                final AnnotationsAttribute annotations = (AnnotationsAttribute) file.getAttribute(AnnotationsAttribute.visibleTag);
+                if (annotations != null) {
+                    for (javassist.bytecode.annotation.Annotation annotation : annotations.getAnnotations()) {
+                        add(byAnnotation, annotation.getTypeName(), i);
+                    }
+                }
+                add(bySupertype, file.getName(), i);
+                if (file.getSuperclass() != null) {
+                    add(bySupertype, file.getSuperclass(), i);
+                }
+                for (String iface : file.getInterfaces()) {
+                    add(bySupertype, iface, i);
+                }
+                addPackages(file.getName(), i);
+            }
+        }
+
+        private void addInterfaces(Class<?> clazz, int i) {
+            for (Class<?> iface : clazz.getInterfaces()) {
+                add(bySupertype, iface.getName(), i);
+                addInterfaces(iface, i);
+            }
+        }
+
+        private void addPackages(String className, int i) {
+            int end = className.lastIndexOf('.');
+            while (end > 0) {
+                add(byPackage, className.substring(0, end), i);
+                end = className.lastIndexOf('.', end - 1);
+            }
+        }
+
+        private static void add(Map<String, BitSet> map, String key, int i) {
+            map.computeIfAbsent(key, k -> new BitSet()).set(i);
+        }
+
+        BitSet match(ChangeSubscription subscription) {
+            final BitSet result = new BitSet();
+            if (subscription.isUnfiltered()) {
+                result.set(0, count);
+            } else {
+                or(result, byAnnotation, subscription.getAnnotations());
+                or(result, bySupertype, subscription.getSupertypes());
+                or(result, byPackage, subscription.getPackages());
+            }
+            if (subscription.isIgnoreBodyOnlyChanges()) {
+                result.andNot(bodyOnly);
+            }
+            return result;
+        }
+
+        private static void or(BitSet result, Map<String, BitSet> map, Set<String> keys) {
+            for (String key : keys) {
+                final BitSet set = map.get(key);
+                if (set != null) {
+                    result.or(set);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.fakereplace.logging.Logger;
+
+/**
+ * Writes the bytes of transformed classes to the dump directory.
+ * <p>
+ * Classes are dumped from inside the class file transformer, so the bytes are only queued there, and are written out
+ * by a background thread. The queue is bounded, if the writer can't keep up classes are dropped rather than slowing
+ * down class loading.
+ *
+ * @author Stuart Douglas
+ */
+final class ClassDumper {
+
+    private static final Logger log = Logger.getLogger(ClassDumper.class);
+
+    private static final int QUEUE_SIZE = Integer.getInteger("org.fakereplace.dump-queue-size", 1000);
+
+    private static volatile ClassDumper instance;
+
+    private final Path directory;
+    private final String[] packages;
+    private final BlockingQueue<Dump> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final AtomicBoolean droppedLogged = new AtomicBoolean();
+
+    private ClassDumper(Path directory, String[] packages) {
+        this.directory = directory;
+        this.packages = packages;
+    }
+
+    /**
+     * Starts dumping classes
+     *
+     * @param directory the directory to dump to
+     * @param packages  a semicolon separated list of the packages to dump, or <code>null</code> to dump every class
+     */
+    static synchronized void enable(String directory, String packages) {
+        if (instance != null) {
+            return;
+        }
+        final ClassDumper dumper = new ClassDumper(Paths.get(directory), packages == null || packages.isEmpty() ? new String[0] : packages.split(";"));
+        final Thread thread = new Thread(dumper::writeLoop, "Fakereplace class dump writer");
+        thread.setDaemon(true);
+        thread.start();
+        instance = dumper;
+    }
+
+    /**
+     * Queues a class to be dumped, if dumping is enabled for its package
+     *
+     * @param className the class name, in either internal or binary form
+     * @param suffix    appended to the class name to form the file name
+     * @param bytes     the class bytes, these must not be modified after they have been queued
+     */
+    static void dump(String className, String suffix, byte[] bytes) {
+        final ClassDumper dumper = instance;
+        if (dumper == null) {
+            return;
+        }
+        final String name = className.replace('/', '.');
+        if (!dumper.isIncluded(name)) {
+            return;
+        }
+        if (!dumper.queue.offer(new Dump(name + suffix + ".class", bytes)) && dumper.droppedLogged.compareAndSet(false, true)) {
+            log.error("Class dump queue is full, some classes will not be dumped. The queue size can be changed with -Dorg.fakereplace.dump-queue-size");
+        }
+    }
+
+    private boolean isIncluded(String className) {
+        if (packages.length == 0) {
+            return true;
+        }
+        for (String p : packages) {
+            if (className.startsWith(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeLoop() {
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            log.error("Could not create class dump directory " + directory, e);
+        }
+        for (;;) {
+            final Dump dump;
+            try {
+                dump = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                Files.write(directory.resolve(dump.fileName), dump.bytes);
+            } catch (IOException e) {
+                log.error("Failed to dump class " + dump.fileName, e);
+            }
+        }
+    }
+
+    private static final class Dump {
+        private final String fileName;
+        private final byte[] bytes;
+
+        private Dump(String fileName, byte[] bytes) {
+            this.fileName = fileName;
+            this.bytes = bytes;
+        }
+    }
+}
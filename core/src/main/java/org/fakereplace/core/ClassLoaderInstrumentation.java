@@ -59,13 +59,14 @@ public class ClassLoaderInstrumentation {
                 // return the data to the correct classloader.
                 // if the data is not null then we define the class, link
                 // it if requested and return it.
+                // the bytes are only fetched once we know the class still has to be
+                // defined, as added classes are stored compressed after they are defined
                 final CodeIterator iterator = method.getCodeAttribute().iterator();
                 final Bytecode b = new Bytecode(classFile.getConstPool());
                 b.addAload(1);
                 b.addAload(0);
-                b.addInvokestatic(ClassLookupManager.class.getName(), "getClassData", "(Ljava/lang/String;Ljava/lang/Object;)[B");
-                b.add(Opcode.DUP);
-                b.add(Opcode.IFNULL);
+                b.addInvokestatic(ClassLookupManager.class.getName(), "hasClassData", "(Ljava/lang/String;Ljava/lang/Object;)Z");
+                b.add(Opcode.IFEQ);
                 JumpMarker jumpEnd = JumpUtils.addJumpInstruction(b);
 
                 //now we need to do the findLoadedClasses thing
@@ -78,6 +79,12 @@ public class ClassLoaderInstrumentation {
                 b.add(Opcode.ARETURN);
                 notFound.mark();
                 b.add(Opcode.POP);
+                b.addAload(1);
+                b.addAload(0);
+                b.addInvokestatic(ClassLookupManager.class.getName(), "getClassData", "(Ljava/lang/String;Ljava/lang/Object;)[B");
+                b.add(Opcode.DUP);
+                b.add(Opcode.IFNULL);
+                JumpMarker noData = JumpUtils.addJumpInstruction(b);
                 b.addAstore(3);
                 b.addAload(0);
                 b.addAload(1);
@@ -99,8 +106,9 @@ public class ClassLoaderInstrumentation {
                 b.addInvokevirtual("java.lang.ClassLoader", "resolveClass", "(Ljava/lang/Class;)V");
                 linkJumpEnd.mark();
                 b.add(Opcode.ARETURN);
-                jumpEnd.mark();
+                noData.mark();
                 b.add(Opcode.POP);
+                jumpEnd.mark();
 
                 if (!classFile.getName().startsWith("java.") && !classFile.getName().startsWith("com.sun") && !classFile.getName().startsWith("sun")&& !classFile.getName().startsWith("jdk.internal")) {
                     //now we need to check if this is a fakereplace class
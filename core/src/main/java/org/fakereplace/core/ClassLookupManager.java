@@ -17,8 +17,8 @@
 
 package org.fakereplace.core;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import org.fakereplace.data.ClassDefinitionBytes;
+import org.fakereplace.data.ClassLoaderData;
 
 /**
  * this class is responsible for serving up classes to instrumented ClassLoaders
@@ -26,7 +26,39 @@ import java.util.concurrent.ConcurrentHashMap;
  * @author stuart
  */
 public class ClassLookupManager {
-    private static final Map<ClassIdentifier, byte[]> classData = new ConcurrentHashMap<>();
+
+    private static final String FAKEREPLACE_PACKAGE = "org.fakereplace.";
+
+    /**
+     * set once the first class has been added. This is called at the start of every loadClass call, so until then
+     * it returns without doing any lookups.
+     */
+    private static volatile boolean classesAdded;
+
+    /**
+     * Called at the start of every loadClass call. This is a cheap check that never decompresses anything, if it
+     * returns true the class loader checks if the class has already been defined before calling
+     * {@link #getClassData(String, Object)}.
+     */
+    public static boolean hasClassData(String className, Object cl) {
+        if (!(cl instanceof ClassLoader)) {
+            return false;
+        }
+        final ClassLoader loader = (ClassLoader) cl;
+        if (className.startsWith(FAKEREPLACE_PACKAGE)) {
+            if (className.startsWith(Constants.GENERATED_CLASS_PACKAGE)) {
+                return ProxyDefinitionStore.hasProxyDefinition(loader, className);
+            }
+            if (className.startsWith("org.fakereplace.integration")) {
+                return true;
+            }
+        }
+        if (!classesAdded) {
+            return false;
+        }
+        final ClassLoaderData data = ClassLoaderData.getIfPresent(loader);
+        return data != null && data.getAddedClassDefinitions().containsKey(className);
+    }
 
     public static byte[] getClassData(String className, Object cl) {
         //if is possible for this to be called by an object that is not a CL
@@ -35,16 +67,27 @@ public class ClassLookupManager {
             return null;
         }
         final ClassLoader loader = (ClassLoader) cl;
-        if (className.startsWith(Constants.GENERATED_CLASS_PACKAGE)) {
-            return ProxyDefinitionStore.getProxyDefinition(loader, className);
+        if (className.startsWith(FAKEREPLACE_PACKAGE)) {
+            if (className.startsWith(Constants.GENERATED_CLASS_PACKAGE)) {
+                return ProxyDefinitionStore.getProxyDefinition(loader, className);
+            }
+            if (className.startsWith("org.fakereplace.integration")) {
+                return IntegrationActivationTransformer.getIntegrationClass(loader, className);
+            }
         }
-        if (className.startsWith("org.fakereplace.integration")) {
-            return IntegrationActivationTransformer.getIntegrationClass(loader, className);
+        if (!classesAdded) {
+            return null;
+        }
+        final ClassLoaderData data = ClassLoaderData.getIfPresent(loader);
+        if (data == null) {
+            return null;
         }
-        return classData.get(new ClassIdentifier(className, loader));
+        final ClassDefinitionBytes bytes = data.getAddedClassDefinitions().get(className);
+        return bytes == null ? null : bytes.get();
     }
 
     public static void addClassInfo(String className, ClassLoader loader, byte[] data) {
-        classData.put(new ClassIdentifier(className, loader), data);
+        ClassLoaderData.get(loader).getAddedClassDefinitions().put(className, new ClassDefinitionBytes(data));
+        classesAdded = true;
     }
 }
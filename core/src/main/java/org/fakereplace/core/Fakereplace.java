@@ -18,30 +18,38 @@
 package org.fakereplace.core;
 
 import java.beans.Introspector;
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.instrument.ClassDefinition;
 import java.lang.instrument.Instrumentation;
 import java.lang.instrument.UnmodifiableClassException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ServiceLoader;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.fakereplace.Extension;
 import org.fakereplace.ReplaceableClassSelector;
 import org.fakereplace.api.NewClassData;
 import org.fakereplace.data.BaseClassData;
-import org.fakereplace.data.ClassDataBuilder;
+import org.fakereplace.data.ClassData;
 import org.fakereplace.data.ClassDataStore;
+import org.fakereplace.data.FieldData;
+import org.fakereplace.data.MemberType;
+import org.fakereplace.data.MethodData;
+import org.fakereplace.metrics.FlightRecorderEvents;
+import org.fakereplace.metrics.Metrics;
 import org.fakereplace.replacement.AddedClass;
 import org.fakereplace.replacement.AnnotationTransformer;
 import org.fakereplace.replacement.FieldReplacementTransformer;
 import org.fakereplace.replacement.MethodReplacementTransformer;
+import org.fakereplace.util.ClassFileBytes;
 import javassist.bytecode.ClassFile;
 
 /**
@@ -59,12 +67,60 @@ public class Fakereplace {
 
     private static final List<ReplaceableClassSelector> replaceableClassSelectors = new CopyOnWriteArrayList<>();
 
+    /**
+     * If this is true deferrable reflection call sites in non replaceable classes are only rewritten once a class
+     * has been replaced
+     */
+    private static volatile boolean lazyReflection;
+
+    /**
+     * set once the classes that were loaded while reflection rewriting was deferred have been queued for rewriting
+     */
+    private static final AtomicBoolean reflectionRewritingEnabled = new AtomicBoolean();
+
+    /**
+     * redefinitions of fewer classes than this are prepared on the calling thread
+     */
+    private static final int PARALLEL_PREPARATION_THRESHOLD = 8;
+
+    /**
+     * pool used to prepare large redefinitions, the threads are only created when they are first needed
+     */
+    private static final ForkJoinPool preparationPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+        final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("Fakereplace redefinition worker " + thread.getPoolIndex());
+        return thread;
+    }, null, false);
+
 
     public static void premain(java.lang.String s, java.lang.instrument.Instrumentation i) {
 
         AgentOptions.setup(s);
         inst = i;
 
+        final String lazy = AgentOptions.getOption(AgentOption.LAZY_REFLECTION);
+        if (lazy != null && Boolean.parseBoolean(lazy)) {
+            lazyReflection = true;
+            Transformer.getManipulator().deferReflectionRewriting();
+        }
+        final String offHeap = AgentOptions.getOption(AgentOption.OFF_HEAP_METADATA);
+        if (offHeap != null && Boolean.parseBoolean(offHeap)) {
+            ClassDataStore.instance().storeBaseClassDataOffHeap();
+        }
+        final String metrics = AgentOptions.getOption(AgentOption.METRICS);
+        if (metrics != null && Boolean.parseBoolean(metrics)) {
+            final String logInterval = AgentOptions.getOption(AgentOption.METRICS_LOG_INTERVAL);
+            Metrics.enable(logInterval == null ? 0 : Long.parseLong(logInterval));
+        }
+        final String dumpDir = AgentOptions.getOption(AgentOption.DUMP_DIR);
+        if (dumpDir != null) {
+            ClassDumper.enable(dumpDir, AgentOptions.getOption(AgentOption.DUMP_PACKAGES));
+        }
+        final String jfr = AgentOptions.getOption(AgentOption.JFR);
+        if (jfr != null && Boolean.parseBoolean(jfr)) {
+            FlightRecorderEvents.enable();
+        }
+
         final Set<Extension> extension = getIntegrationInfo(ClassLoader.getSystemClassLoader());
 
         replaceableClassSelectors.add(DefaultReplaceableClassSelector.INSTANCE);
@@ -103,56 +159,177 @@ public class Fakereplace {
     }
 
     public static void redefine(ClassDefinition[] classes, AddedClass[] addedData, boolean wait) {
+        final long start = Metrics.start();
+        final Object event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.REDEFINITION);
         try {
-            for (AddedClass i : addedData) {
-                ClassFile cf = new ClassFile(new DataInputStream(new ByteArrayInputStream(i.getData())));
-                mainTransformer.addNewClass(new NewClassData(i.getClassName(), i.getLoader(), cf));
+            final List<NewClassData> newClasses = prepare(addedData, i -> {
+                ClassFile cf = ClassFileBytes.read(i.getData());
+                return new NewClassData(i.getClassName(), i.getLoader(), cf);
+            });
+            for (NewClassData newClass : newClasses) {
+                mainTransformer.addNewClass(newClass);
             }
-            for (ClassDefinition i : classes) {
+            // parsing and fingerprinting the new bytes is the expensive part of working out what changed, and
+            // unlike the transformers themselves it does not touch any shared state, so it is done up front
+            prepare(classes, i -> {
                 ClassDataStore.instance().markClassReplaced(i.getDefinitionClass());
-                BaseClassData baseClassData = ClassDataStore.instance().getBaseClassData(i.getDefinitionClass().getClassLoader(), i.getDefinitionClass().getName());
-                if (baseClassData != null) {
-                    ClassDataStore.instance().saveClassData(i.getDefinitionClass().getClassLoader(), i.getDefinitionClass().getName(), new ClassDataBuilder(baseClassData));
+                beginRedefinition(i);
+                if (ClassDataStore.instance().isClassReplaceable(i.getDefinitionClass())) {
+                    mainTransformer.prepareRedefinition(i.getDefinitionClass(), i.getDefinitionClassFile());
                 }
-            }
+                return null;
+            });
             for (AddedClass c : addedData) {
                 ClassLookupManager.addClassInfo(c.getClassName(), c.getLoader(), c.getData());
             }
-            inst.redefineClasses(classes);
+            final Set<Class<?>> reflectionClasses = enableReflectionRewriting();
+            final Set<Class<?>> redefinedClasses = new HashSet<>();
+            for (ClassDefinition i : classes) {
+                redefinedClasses.add(i.getDefinitionClass());
+            }
+            final Set<Class<?>> redefineAgain;
+            mainTransformer.redefinitionStarted();
+            try {
+                inst.redefineClasses(classes);
+            } finally {
+                mainTransformer.discardPreparedClasses(redefinedClasses);
+                redefineAgain = mainTransformer.redefinitionFinished(redefinedClasses);
+                publishPendingData(classes);
+            }
+            if (!redefineAgain.isEmpty()) {
+                // these were transformed before a class they depend on, e.g. one that adds a method that they
+                // reference from a lambda. Retransforming them would start from the bytes they were loaded with
+                final List<ClassDefinition> again = new ArrayList<>();
+                for (ClassDefinition i : classes) {
+                    if (redefineAgain.contains(i.getDefinitionClass())) {
+                        beginRedefinition(i);
+                        again.add(i);
+                    }
+                }
+                final ClassDefinition[] definitions = again.toArray(new ClassDefinition[again.size()]);
+                mainTransformer.redefiningAgain(redefineAgain, true);
+                try {
+                    inst.redefineClasses(definitions);
+                } finally {
+                    mainTransformer.redefiningAgain(redefineAgain, false);
+                    publishPendingData(definitions);
+                }
+            }
+            mainTransformer.retransformForReflection(reflectionClasses);
             Introspector.flushCaches();
+            Metrics.add(Metrics.Counter.CLASSES_REDEFINED, classes.length);
+            Metrics.record(Metrics.REDEFINE, start);
+            if (event != null) {
+                FlightRecorderEvents.commit(event, classes.length, addedData.length, countAddedMembers(classes));
+            }
             if(wait) {
                 mainTransformer.waitForTasks();
             }
         } catch (Throwable e) {
-            try {
-                // dump the classes to /tmp so we can look at them
-                for (ClassDefinition d : classes) {
-                    try {
-                        ByteArrayInputStream bin = new ByteArrayInputStream(d.getDefinitionClassFile());
-                        DataInputStream dis = new DataInputStream(bin);
-                        final ClassFile file = new ClassFile(dis);
-                        Transformer.getManipulator().transformClass(file, d.getDefinitionClass().getClassLoader(), true, new HashSet<>());
-                        String dumpDir = AgentOptions.getOption(AgentOption.DUMP_DIR);
-                        if (dumpDir != null) {
-                            FileOutputStream s = new FileOutputStream(dumpDir + '/' + d.getDefinitionClass().getName() + "1.class");
-                            DataOutputStream dos = new DataOutputStream(s);
-                            file.write(dos);
-                            dos.flush();
-                            dos.close();
-                            // s.write(d.getDefinitionClassFile());
-                            s.close();
-                        }
-                    } catch (IOException a) {
-                        a.printStackTrace();
-                    }
-                }
-            } catch (Exception ex) {
-                ex.printStackTrace();
+            // the transformed bytes have already been dumped by the transformer, also dump what we were given
+            for (ClassDefinition d : classes) {
+                ClassDumper.dump(d.getDefinitionClass().getName(), "-input", d.getDefinitionClassFile());
             }
             throw (new RuntimeException(e));
         }
     }
 
+    private static void beginRedefinition(ClassDefinition definition) {
+        final Class<?> clazz = definition.getDefinitionClass();
+        final BaseClassData baseClassData = ClassDataStore.instance().getBaseClassData(clazz.getClassLoader(), clazz.getName());
+        if (baseClassData != null) {
+            ClassDataStore.instance().beginRedefinition(clazz.getClassLoader(), clazz.getName(), baseClassData);
+        }
+    }
+
+    /**
+     * The transformer normally publishes these, this makes sure nothing is left pending if it did not run
+     */
+    private static void publishPendingData(ClassDefinition[] classes) {
+        for (ClassDefinition i : classes) {
+            ClassDataStore.instance().publishPendingData(i.getDefinitionClass().getClassLoader(), i.getDefinitionClass().getName());
+        }
+    }
+
+    /**
+     * Counts the members that the redefined classes have beyond the ones they were loaded with
+     */
+    private static int countAddedMembers(ClassDefinition[] classes) {
+        int count = 0;
+        for (ClassDefinition definition : classes) {
+            final ClassData data = ClassDataStore.instance().getModifiedClassData(definition.getDefinitionClass().getClassLoader(), definition.getDefinitionClass().getName());
+            if (data == null) {
+                continue;
+            }
+            for (MethodData method : data.getMethods()) {
+                if (method.getType() == MemberType.FAKE || method.getType() == MemberType.FAKE_CONSTRUCTOR) {
+                    ++count;
+                }
+            }
+            for (FieldData field : data.getFields()) {
+                if (field.getMemberType() == MemberType.FAKE) {
+                    ++count;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Runs the preparation step of a redefinition for every class. Large redefinitions are spread over the
+     * preparation pool, the results are returned in the same order as the input.
+     */
+    private static <T, R> List<R> prepare(T[] items, PreparationTask<T, R> task) throws IOException {
+        final List<R> results = new ArrayList<>(items.length);
+        if (items.length < PARALLEL_PREPARATION_THRESHOLD) {
+            for (T item : items) {
+                results.add(task.prepare(item));
+            }
+            return results;
+        }
+        final List<ForkJoinTask<R>> tasks = new ArrayList<>(items.length);
+        for (T item : items) {
+            tasks.add(preparationPool.submit(() -> task.prepare(item)));
+        }
+        for (ForkJoinTask<R> t : tasks) {
+            results.add(t.join());
+        }
+        return results;
+    }
+
+    private interface PreparationTask<T, R> {
+        R prepare(T item) throws IOException;
+    }
+
+    /**
+     * If lazy reflection is enabled this turns on reflection rewriting the first time it is called, and returns
+     * the already loaded classes that still need to be rewritten. Rewriting is global, so this includes classes
+     * in every class loader, not just the loaders of the redefined classes, as framework code in a sibling
+     * loader may reflect on the replaced classes.
+     */
+    private static Set<Class<?>> enableReflectionRewriting() {
+        if (!lazyReflection || !reflectionRewritingEnabled.compareAndSet(false, true)) {
+            return Collections.emptySet();
+        }
+        Transformer.getManipulator().enableReflectionRewriting();
+        final Set<Class<?>> result = new HashSet<>();
+        for (Class<?> c : inst.getAllLoadedClasses()) {
+            if (c.isArray() || !inst.isModifiableClass(c)) {
+                continue;
+            }
+            // class loaders are instrumented separately, and hidden classes can't be retransformed
+            if (ClassLoader.class.isAssignableFrom(c) || c.getName().indexOf('/') != -1) {
+                continue;
+            }
+            // replaceable classes always have their reflection calls rewritten
+            if (BuiltinClassData.skipInstrumentation(c.getName()) || ClassDataStore.instance().isClassReplaceable(c)) {
+                continue;
+            }
+            result.add(c);
+        }
+        return result;
+    }
+
     public static Instrumentation getInstrumentation() {
         return inst;
     }
@@ -37,4 +37,11 @@ public interface FakereplaceTransformer {
      */
     boolean transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined, final ProtectionDomain protectionDomain, final ClassFile file, Set<Class<?>> classesToRetransform, ChangedClassImpl changedClass, Set<MethodInfo> modifiedMethods) throws IllegalClassFormatException, BadBytecode, DuplicateMemberException;
 
+    /**
+     * Returns true if this transformer only deals with changes to the members or annotations of a class, so it
+     * does not need to run when a class is redefined with changes to its method bodies only
+     */
+    default boolean isStructuralTransformer() {
+        return false;
+    }
 }
@@ -17,8 +17,6 @@
 
 package org.fakereplace.core;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -37,6 +35,7 @@ import java.util.Set;
 
 import org.fakereplace.data.ClassLoaderData;
 import org.fakereplace.replacement.AddedClass;
+import org.fakereplace.util.ClassFileBytes;
 import org.fakereplace.util.FileReader;
 import org.fakereplace.util.MD5;
 import org.fakereplace.util.WatchServiceFileSystemWatcher;
@@ -77,7 +76,7 @@ class FileSystemWatcher {
                     if (change.getType() == WatchServiceFileSystemWatcher.FileChangeEvent.Type.ADDED) {
                         try (FileInputStream in = new FileInputStream(change.getFile().toFile())) {
                             byte[] bytes = FileReader.readFileBytes(in);
-                            ClassFile file = new ClassFile(new DataInputStream(new ByteArrayInputStream(bytes)));
+                            ClassFile file = ClassFileBytes.read(bytes);
                             addedClasses.add(new AddedClass(file.getName(), bytes, classLoader));
                         }
                     } else if(change.getType() == WatchServiceFileSystemWatcher.FileChangeEvent.Type.MODIFIED) {
@@ -89,7 +88,7 @@ class FileSystemWatcher {
                         try (FileInputStream in = new FileInputStream(change.getFile().toFile())) {
                             byte[] bytes = FileReader.readFileBytes(in);
                             if(!hash.equals(MD5.md5(bytes))) {
-                                ClassFile file = new ClassFile(new DataInputStream(new ByteArrayInputStream(bytes)));
+                                ClassFile file = ClassFileBytes.read(bytes);
                                 changedClasses.add(new ClassDefinition(classLoader.loadClass(file.getName()), bytes));
                             }
                         }
@@ -135,11 +134,7 @@ class FileSystemWatcher {
         }
         registered.add(file);
 
-        ClassLoaderData classLoaderData = ClassLoaderData.get(classLoader);
-        Callback callback = classLoaderData.getAttachment(callbackAttachmentKey);
-        if(callback == null) {
-            classLoaderData.putAttachment(callbackAttachmentKey, callback = new Callback(classLoader));
-        }
+        Callback callback = ClassLoaderData.get(classLoader).getOrCreateAttachment(callbackAttachmentKey, () -> new Callback(classLoader));
         watcher.watchPath(file, callback);
     }
 
@@ -16,29 +16,33 @@
  */
 package org.fakereplace.core;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.UnmodifiableClassException;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.fakereplace.api.ChangedClass;
 import org.fakereplace.api.NewClassData;
+import org.fakereplace.data.ClassDataStore;
 import org.fakereplace.logging.Logger;
+import org.fakereplace.metrics.FlightRecorderEvents;
+import org.fakereplace.metrics.Metrics;
 import org.fakereplace.replacement.notification.ChangedClassImpl;
+import org.fakereplace.util.ClassFileBytes;
 import org.fakereplace.util.DescriptorUtils;
 import javassist.ClassPool;
 import javassist.LoaderClassPath;
@@ -58,6 +62,12 @@ public class MainTransformer implements ClassFileTransformer {
 
     private static final Logger log = Logger.getLogger(MainTransformer.class);
 
+    /**
+     * the number of classes retransformed in each VM operation when deferred reflection rewriting is turned on.
+     * Every call stops the world, so the classes are batched, but not so many that one pause gets long.
+     */
+    private static final int REFLECTION_RETRANSFORM_BATCH_SIZE = Integer.getInteger("org.fakereplace.reflection-retransform-batch-size", 500);
+
     private volatile FakereplaceTransformer[] transformers = {};
 
     private final List<ChangedClass> changedClasses = new CopyOnWriteArrayList<>();
@@ -72,17 +82,79 @@ public class MainTransformer implements ClassFileTransformer {
     private int integrationRun;
     private int retransformationOutstandingCount;
 
+    /**
+     * the number of redefinitions in progress, and the classes to retransform once they have all finished. If a
+     * class that is part of a redefinition is retransformed before the redefinition is complete the
+     * retransformation can be applied to the old version of the class. Retransforming a class that has been
+     * redefined also starts from the bytes it was loaded with, so classes that are part of the redefinition are
+     * handed back to be redefined again instead.
+     */
+    private int redefinitionsInProgress;
+    private final Set<Class<?>> deferredRetransforms = new HashSet<>();
+    private int deferredRetransformRequests;
+
     private volatile boolean retransformationStarted;
 
     private boolean logClassRetransformation;
 
+    /**
+     * classes that are being retransformed to pick up deferred reflection rewrites. These are not
+     * changes to the class, so they are transformed as if they were being loaded.
+     */
+    private final Set<Class<?>> reflectionRetransforms = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /**
+     * classes of a redefinition that have already been parsed and fingerprinted by the parallel preparation
+     * stage, so the transformer only has to do this work itself for classes whose bytes were changed by another
+     * agent in the meantime
+     */
+    private final Map<Class<?>, PreparedClass> preparedClasses = new ConcurrentHashMap<>();
+
+    /**
+     * classes that are being redefined a second time as part of the same redefinition, see
+     * {@link #redefinitionFinished(Set)}. Listeners have already been given the change from the first pass.
+     */
+    private final Set<Class<?>> redefiningAgain = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private final ExecutorService reflectionRetransformExecutor = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "Fakereplace reflection instrumentation");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     @Override
-    public byte[] transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined, final ProtectionDomain protectionDomain, final byte[] classfileBuffer) throws IllegalClassFormatException {
+    public byte[] transform(final ClassLoader loader, final String className, final Class<?> redefinedClass, final ProtectionDomain protectionDomain, final byte[] classfileBuffer) throws IllegalClassFormatException {
         if (className == null) {
-            //TODO: deal with lambdas
-            return classfileBuffer;
+            // VM anonymous classes, such as lambda proxies on older JVMs. These can't be replaced, and lambda proxies
+            // only call the method their bootstrap method points to, which is rewritten in the class that declares
+            // the lambda. Hidden classes are never passed to transformers.
+            return null;
+        }
+        Metrics.increment(Metrics.Counter.CLASSES_SEEN);
+        final long start = Metrics.start();
+        final Object event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.CLASS_TRANSFORM);
+        final List<String> applied = event == null ? null : new ArrayList<>();
+        byte[] result = null;
+        try {
+            result = transformClass(loader, className, redefinedClass, protectionDomain, classfileBuffer, applied);
+            if (result != null) {
+                Metrics.increment(Metrics.Counter.CLASSES_MODIFIED);
+            }
+            return result;
+        } finally {
+            Metrics.record(Metrics.TRANSFORM, start);
+            if (event != null) {
+                final String loaderName = loader == null ? "bootstrap" : loader.getClass().getName() + '@' + Integer.toHexString(System.identityHashCode(loader));
+                FlightRecorderEvents.commit(event, className.replace('/', '.'), loaderName, String.join(",", applied), classfileBuffer.length, result == null ? 0 : result.length);
+            }
         }
+    }
+
+    /**
+     * @param applied if this is not null the names of the transformers that modify the class are added to it
+     */
+    private byte[] transformClass(final ClassLoader loader, final String className, final Class<?> redefinedClass, final ProtectionDomain protectionDomain, final byte[] classfileBuffer, final List<String> applied) throws IllegalClassFormatException {
+        final Class<?> classBeingRedefined = redefinedClass != null && reflectionRetransforms.contains(redefinedClass) ? null : redefinedClass;
         boolean replaceable = Fakereplace.isClassReplaceable(className, loader);
         if (classBeingRedefined != null) {
             retransformationStarted = true;
@@ -91,28 +163,63 @@ public class MainTransformer implements ClassFileTransformer {
             }
         }
         ChangedClassImpl changedClass = null;
-        if (classBeingRedefined != null) {
-            changedClass = new ChangedClassImpl(classBeingRedefined);
-        }
 
         boolean changed = false;
         if (!replaceable && UnmodifiedFileIndex.isClassUnmodified(className)) {
+            Metrics.increment(Metrics.Counter.CLASSES_SKIPPED);
             return null;
         }
+        // if reflection rewriting is deferred we can't tell if the class will need to be modified later
+        final boolean reflectionDeferred = Transformer.getManipulator().isReflectionRewritingDeferred();
         Set<Class<?>> classesToRetransform = new HashSet<>();
         final ClassFile file;
         try {
             Set<MethodInfo> modifiedMethods = new HashSet<>();
-            file = new ClassFile(new DataInputStream(new ByteArrayInputStream(classfileBuffer)));
-            for (final FakereplaceTransformer transformer : transformers) {
-                if (transformer.transform(loader, className, classBeingRedefined, protectionDomain, file, classesToRetransform, changedClass, modifiedMethods)) {
-                    changed = true;
+            final PreparedClass prepared = classBeingRedefined == null ? null : preparedClasses.remove(classBeingRedefined);
+            final boolean usePrepared = prepared != null && Arrays.equals(prepared.bytes, classfileBuffer);
+            file = usePrepared ? prepared.file : ClassFileBytes.read(classfileBuffer);
+            // if only method bodies have changed the class can skip the replacement transformers
+            boolean bodyOnlyChange = false;
+            if (replaceable) {
+                final long fingerprint = usePrepared ? prepared.fingerprint : StructureFingerprint.of(file);
+                if (redefinedClass == null) {
+                    ClassDataStore.instance().saveStructureFingerprint(loader, className, fingerprint);
+                } else if (classBeingRedefined != null) {
+                    bodyOnlyChange = ClassDataStore.instance().isStructureUnchanged(loader, className, fingerprint);
+                }
+            }
+            if (classBeingRedefined != null) {
+                changedClass = new ChangedClassImpl(classBeingRedefined, bodyOnlyChange);
+            }
+            try {
+                for (final FakereplaceTransformer transformer : transformers) {
+                    // classes that are not replaceable can still be retransformed by other agents, or JFR, but
+                    // their structure never changes
+                    if ((bodyOnlyChange || !replaceable) && transformer.isStructuralTransformer()) {
+                        continue;
+                    }
+                    final long transformerStart = Metrics.start();
+                    if (transformer.transform(loader, className, classBeingRedefined, protectionDomain, file, classesToRetransform, changedClass, modifiedMethods)) {
+                        changed = true;
+                        if (applied != null) {
+                            applied.add(transformer.getClass().getSimpleName());
+                        }
+                    }
+                    Metrics.record(transformer.getClass().getName(), transformerStart);
+                }
+            } finally {
+                if (classBeingRedefined != null) {
+                    // make the changes from all the transformers visible at once
+                    ClassDataStore.instance().publishPendingData(loader, className);
                 }
             }
             if (!changed) {
-                UnmodifiedFileIndex.markClassUnmodified(className);
+                if (replaceable || !reflectionDeferred) {
+                    UnmodifiedFileIndex.markClassUnmodified(className);
+                }
                 return null;
             } else {
+                final long stackMapStart = Metrics.start();
                 try {
                     if (!modifiedMethods.isEmpty()) {
                         ClassPool classPool = new ClassPool();
@@ -155,48 +262,29 @@ public class MainTransformer implements ClassFileTransformer {
                 } catch (BadBytecode e) {
                     throw new RuntimeException(e);
                 }
-                ByteArrayOutputStream bs = new ByteArrayOutputStream();
-                file.write(new DataOutputStream(bs));
+                Metrics.record(Metrics.STACK_MAP_REBUILD, stackMapStart);
+                final byte[] result = ClassFileBytes.write(file, classfileBuffer.length);
                 // dump the class for debugging purposes
-                final String dumpDir = AgentOptions.getOption(AgentOption.DUMP_DIR);
-                if (dumpDir != null) {
-                    try {
-                        File dump = new File(dumpDir + '/' + file.getName() + ".class");
-                        dump.getParentFile().mkdirs();
-                        FileOutputStream s = new FileOutputStream(dump);
-                        DataOutputStream dos = new DataOutputStream(s);
-                        file.write(dos);
-                        s.close();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
+                ClassDumper.dump(file.getName(), "", result);
 
                 if (!classesToRetransform.isEmpty()) {
+                    Metrics.add(Metrics.Counter.CLASSES_RETRANSFORMED, classesToRetransform.size());
                     synchronized (this) {
                         retransformationOutstandingCount++;
-                    }
-                    Thread t = new Thread(() -> {
-                        try {
-                            Fakereplace.getInstrumentation().retransformClasses(classesToRetransform.toArray(new Class[classesToRetransform.size()]));
-                        } catch (UnmodifiableClassException e) {
-                            log.error("Failed to retransform classes", e);
-                        } finally {
-                            synchronized (MainTransformer.this) {
-                                retransformationOutstandingCount--;
-                                notifyAll();
-                            }
+                        if (redefinitionsInProgress > 0) {
+                            deferredRetransforms.addAll(classesToRetransform);
+                            deferredRetransformRequests++;
+                        } else {
+                            retransform(classesToRetransform, 1);
                         }
-                    });
-                    t.setDaemon(true);
-                    t.start();
+                    }
                 }
 
-                if (classBeingRedefined != null) {
+                if (classBeingRedefined != null && !redefiningAgain.contains(classBeingRedefined)) {
                     changedClasses.add(changedClass);
                     queueIntegration();
                 }
-                return bs.toByteArray();
+                return result;
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -207,6 +295,135 @@ public class MainTransformer implements ClassFileTransformer {
         }
     }
 
+    /**
+     * Parses and fingerprints a class that is about to be redefined. This is called from the parallel
+     * preparation stage of a redefinition, the result is used when the class is transformed as long as no
+     * other agent has changed the bytes in the meantime.
+     */
+    void prepareRedefinition(Class<?> clazz, byte[] bytes) throws IOException {
+        final ClassFile file = ClassFileBytes.read(bytes);
+        preparedClasses.put(clazz, new PreparedClass(bytes, file, StructureFingerprint.of(file)));
+    }
+
+    /**
+     * Marks the start or end of the second redefinition of classes returned by {@link #redefinitionFinished(Set)}
+     */
+    void redefiningAgain(Set<Class<?>> classes, boolean started) {
+        if (started) {
+            redefiningAgain.addAll(classes);
+        } else {
+            redefiningAgain.removeAll(classes);
+        }
+    }
+
+    /**
+     * Discards anything that was prepared for the given classes but not used, e.g. because the redefinition failed
+     */
+    void discardPreparedClasses(Set<Class<?>> classes) {
+        preparedClasses.keySet().removeAll(classes);
+    }
+
+    /**
+     * Called before a redefinition starts, retransformations that are needed by the redefined classes are
+     * deferred until {@link #redefinitionFinished(Set)}
+     */
+    synchronized void redefinitionStarted() {
+        redefinitionsInProgress++;
+    }
+
+    /**
+     * Starts the retransformations that were deferred while the redefinition was in progress
+     *
+     * @param redefined the classes that were redefined
+     * @return the redefined classes that need to be transformed again, these have to be redefined again by the caller
+     */
+    synchronized Set<Class<?>> redefinitionFinished(Set<Class<?>> redefined) {
+        if (--redefinitionsInProgress != 0 || deferredRetransforms.isEmpty()) {
+            return Collections.emptySet();
+        }
+        final Set<Class<?>> redefineAgain = new HashSet<>();
+        final Set<Class<?>> classes = new HashSet<>();
+        for (Class<?> c : deferredRetransforms) {
+            (redefined.contains(c) ? redefineAgain : classes).add(c);
+        }
+        deferredRetransforms.clear();
+        if (classes.isEmpty()) {
+            retransformationOutstandingCount -= deferredRetransformRequests;
+            notifyAll();
+        } else {
+            retransform(classes, deferredRetransformRequests);
+        }
+        deferredRetransformRequests = 0;
+        return redefineAgain;
+    }
+
+    /**
+     * Retransforms classes in the background
+     *
+     * @param requests the number of times the outstanding count was incremented for these classes
+     */
+    private void retransform(final Set<Class<?>> classes, final int requests) {
+        Thread t = new Thread(() -> {
+            try {
+                Fakereplace.getInstrumentation().retransformClasses(classes.toArray(new Class[classes.size()]));
+            } catch (UnmodifiableClassException e) {
+                log.error("Failed to retransform classes", e);
+            } finally {
+                synchronized (MainTransformer.this) {
+                    retransformationOutstandingCount -= requests;
+                    notifyAll();
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Retransforms already loaded classes in the background so that they pick up reflection rewrites
+     * that were deferred when they were loaded.
+     */
+    void retransformForReflection(final Set<Class<?>> classes) {
+        if (classes.isEmpty()) {
+            return;
+        }
+        reflectionRetransforms.addAll(classes);
+        Metrics.add(Metrics.Counter.CLASSES_RETRANSFORMED, classes.size());
+        reflectionRetransformExecutor.execute(() -> {
+            try {
+                final Class<?>[] all = classes.toArray(new Class<?>[classes.size()]);
+                for (int i = 0; i < all.length; i += REFLECTION_RETRANSFORM_BATCH_SIZE) {
+                    retransformForReflection(Arrays.copyOfRange(all, i, Math.min(all.length, i + REFLECTION_RETRANSFORM_BATCH_SIZE)));
+                }
+            } finally {
+                reflectionRetransforms.removeAll(classes);
+            }
+        });
+    }
+
+    /**
+     * Retransforms a batch of classes in a single VM operation. If that fails the classes are retried one at a
+     * time, so a single class that can't be retransformed does not stop the rest of the batch.
+     */
+    private void retransformForReflection(Class<?>[] batch) {
+        try {
+            Fakereplace.getInstrumentation().retransformClasses(batch);
+            return;
+        } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+            if (batch.length == 1) {
+                log.error("Failed to retransform " + batch[0].getName() + " to rewrite reflection calls", e);
+                return;
+            }
+        }
+        for (Class<?> clazz : batch) {
+            try {
+                Fakereplace.getInstrumentation().retransformClasses(clazz);
+            } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+                log.error("Failed to retransform " + clazz.getName() + " to rewrite reflection calls", e);
+            }
+        }
+    }
+
     private void queueIntegration() {
         //retransformed classes should trigger this as well
         synchronized (this) {
@@ -316,4 +533,16 @@ public class MainTransformer implements ClassFileTransformer {
     public void setRetransformationStarted(boolean retransformationStarted) {
         this.retransformationStarted = retransformationStarted;
     }
+
+    private static final class PreparedClass {
+        private final byte[] bytes;
+        private final ClassFile file;
+        private final long fingerprint;
+
+        private PreparedClass(byte[] bytes, ClassFile file, long fingerprint) {
+            this.bytes = bytes;
+            this.file = file;
+            this.fingerprint = fingerprint;
+        }
+    }
 }
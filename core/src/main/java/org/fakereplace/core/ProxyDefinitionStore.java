@@ -20,6 +20,7 @@ package org.fakereplace.core;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.fakereplace.data.ClassDefinitionBytes;
 import org.fakereplace.data.ClassLoaderData;
 
 /**
@@ -31,13 +32,19 @@ public class ProxyDefinitionStore {
     private static final AtomicLong proxyNo = new AtomicLong();
 
     public static byte[] getProxyDefinition(ClassLoader classLoader, String name) {
-        Map<String, byte[]> def = ClassLoaderData.get(classLoader).getProxyDefinitions();
-        return def.get(name);
+        Map<String, ClassDefinitionBytes> def = ClassLoaderData.get(classLoader).getProxyDefinitions();
+        ClassDefinitionBytes bytes = def.get(name);
+        return bytes == null ? null : bytes.get();
+    }
+
+    public static boolean hasProxyDefinition(ClassLoader classLoader, String name) {
+        final ClassLoaderData data = ClassLoaderData.getIfPresent(classLoader);
+        return data != null && data.getProxyDefinitions().containsKey(name);
     }
 
     public static void saveProxyDefinition(ClassLoader classLoader, String className, byte[] data) {
-        Map<String, byte[]> def = ClassLoaderData.get(classLoader).getProxyDefinitions();
-        def.put(className, data);
+        Map<String, ClassDefinitionBytes> def = ClassLoaderData.get(classLoader).getProxyDefinitions();
+        def.put(className, new ClassDefinitionBytes(data));
     }
 
     /**
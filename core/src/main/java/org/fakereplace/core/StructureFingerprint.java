@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.core;
+
+import java.util.List;
+
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.AttributeInfo;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.ExceptionsAttribute;
+import javassist.bytecode.FieldInfo;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.ParameterAnnotationsAttribute;
+import javassist.bytecode.SignatureAttribute;
+
+/**
+ * A hash of everything about a class except its method bodies: the class hierarchy, the members and
+ * their signatures and the annotations. If two versions of a class have the same fingerprint then the
+ * new version can be redefined directly, without going through the replacement transformers.
+ * <p>
+ * Annotations are hashed in their resolved form, as the constant pool of a recompiled class is
+ * generally laid out differently even if nothing but a method body has changed.
+ *
+ * @author Stuart Douglas
+ */
+final class StructureFingerprint {
+
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private long hash = OFFSET_BASIS;
+
+    private StructureFingerprint() {
+    }
+
+    static long of(ClassFile file) {
+        final StructureFingerprint fingerprint = new StructureFingerprint();
+        fingerprint.add(file.getAccessFlags());
+        fingerprint.add(file.getSuperclass());
+        for (String iface : file.getInterfaces()) {
+            fingerprint.add(iface);
+        }
+        fingerprint.addAttributes(file.getAttributes());
+        for (FieldInfo field : (List<FieldInfo>) file.getFields()) {
+            fingerprint.add(field.getName());
+            fingerprint.add(field.getDescriptor());
+            fingerprint.add(field.getAccessFlags());
+            final int constant = field.getConstantValue();
+            if (constant != 0) {
+                fingerprint.add(String.valueOf(field.getConstPool().getLdcValue(constant)));
+            }
+            fingerprint.addAttributes(field.getAttributes());
+        }
+        for (MethodInfo method : (List<MethodInfo>) file.getMethods()) {
+            fingerprint.add(method.getName());
+            fingerprint.add(method.getDescriptor());
+            fingerprint.add(method.getAccessFlags());
+            final ExceptionsAttribute exceptions = method.getExceptionsAttribute();
+            if (exceptions != null) {
+                for (String exception : exceptions.getExceptions()) {
+                    fingerprint.add(exception);
+                }
+            }
+            fingerprint.addAttributes(method.getAttributes());
+        }
+        return fingerprint.hash;
+    }
+
+    private void addAttributes(List<AttributeInfo> attributes) {
+        for (AttributeInfo attribute : attributes) {
+            if (attribute instanceof AnnotationsAttribute || attribute instanceof ParameterAnnotationsAttribute) {
+                add(attribute.getName());
+                add(attribute.toString());
+            } else if (attribute instanceof SignatureAttribute) {
+                add(attribute.getName());
+                add(((SignatureAttribute) attribute).getSignature());
+            }
+        }
+    }
+
+    private void add(String value) {
+        if (value == null) {
+            add(0);
+            return;
+        }
+        for (int i = 0; i < value.length(); ++i) {
+            add(value.charAt(i));
+        }
+        // terminate the string so adjacent values can't run into each other
+        add(0xFFFF);
+    }
+
+    private void add(int value) {
+        hash = (hash ^ value) * PRIME;
+    }
+}
@@ -25,6 +25,7 @@ import org.fakereplace.data.BaseClassData;
 import org.fakereplace.data.ClassDataStore;
 import org.fakereplace.manip.ManipulationUtils;
 import org.fakereplace.manip.Manipulator;
+import org.fakereplace.reflection.ConstructorReflection;
 import org.fakereplace.reflection.ReflectionInstrumentationSetup;
 import org.fakereplace.replacement.notification.ChangedClassImpl;
 import org.fakereplace.util.NoInstrument;
@@ -62,6 +63,7 @@ public class Transformer implements FakereplaceTransformer {
         boolean modified = false;
         if (classBeingRedefined != null) {
             ClassDataStore.instance().markClassReplaced(classBeingRedefined);
+            ConstructorReflection.clearAddedConstructor(classBeingRedefined);
         }
         // we do not instrument any classes from fakereplace
         // if we did we get an endless loop
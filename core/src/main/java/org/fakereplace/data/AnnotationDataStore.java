@@ -17,214 +17,144 @@
 
 package org.fakereplace.data;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.fakereplace.api.ChangeType;
-import org.fakereplace.core.ProxyDefinitionStore;
 import org.fakereplace.replacement.notification.ChangedAnnotationImpl;
 import org.fakereplace.replacement.notification.ChangedClassImpl;
-import javassist.bytecode.AccessFlag;
 import javassist.bytecode.AnnotationsAttribute;
-import javassist.bytecode.AttributeInfo;
-import javassist.bytecode.Bytecode;
-import javassist.bytecode.ClassFile;
-import javassist.bytecode.MethodInfo;
-import javassist.bytecode.Opcode;
 import javassist.bytecode.ParameterAnnotationsAttribute;
 
 /**
  * Stores information about the annotations on reloaded classes
  * <p>
- * TODO: This leaks Class's. everthing should be stored in weak hashaps keyed on
- * the class object
+ * All the annotations of a class and its members are held in a single record that is attached to the class
+ * with a {@link ClassValue}, so they do not keep the class or its class loader alive. Members are looked up by
+ * name, so lookups do not need to hash the reflection objects.
  *
  * @author stuart
  */
 public class AnnotationDataStore {
 
-    private static final Map<Class<?>, Annotation[]> classAnnotations = new ConcurrentHashMap<>();
-
-    private static final Map<Class<?>, Map<Class<? extends Annotation>, Annotation>> classAnnotationsByType = new ConcurrentHashMap<>();
-
-    private static final Map<Field, Annotation[]> fieldAnnotations = new ConcurrentHashMap<>();
-
-    private static final Map<Field, Map<Class<? extends Annotation>, Annotation>> fieldAnnotationsByType = new ConcurrentHashMap<>();
-
-    private static final Map<Method, Annotation[]> methodAnnotations = new ConcurrentHashMap<>();
-
-    private static final Map<Method, Map<Class<? extends Annotation>, Annotation>> methodAnnotationsByType = new ConcurrentHashMap<>();
-
-    private static final Map<Method, Annotation[][]> parameterAnnotations = new ConcurrentHashMap<>();
-
-    private static final Map<Constructor<?>, Annotation[]> constructorAnnotations = new ConcurrentHashMap<>();
-
-    private static final Map<Constructor<?>, Map<Class<? extends Annotation>, Annotation>> constructorAnnotationsByType = new ConcurrentHashMap<>();
-
-    private static final Map<Constructor<?>, Annotation[][]> constructorParameterAnnotations = new ConcurrentHashMap<>();
+    private static final ClassValue<ClassAnnotations> recordedAnnotations = new ClassValue<ClassAnnotations>() {
+        @Override
+        protected ClassAnnotations computeValue(Class<?> type) {
+            return new ClassAnnotations();
+        }
+    };
 
-    private static final String PROXY_METHOD_NAME = "annotationsMethod";
+    /**
+     * incremented every time class level annotations are recorded, so cached views of the class hierarchy
+     * know when they are stale
+     */
+    private static final AtomicInteger classAnnotationsVersion = new AtomicInteger();
 
     public static boolean isClassDataRecorded(Class<?> clazz) {
-        return classAnnotations.containsKey(clazz);
+        return recordedAnnotations.get(clazz).annotations != null;
+    }
+
+    public static int getClassAnnotationsVersion() {
+        return classAnnotationsVersion.get();
     }
 
     public static Annotation[] getClassAnnotations(Class<?> clazz) {
-        return classAnnotations.get(clazz);
+        final AnnotationSet set = recordedAnnotations.get(clazz).annotations;
+        return set == null ? null : set.annotations;
     }
 
     public static Annotation getClassAnnotation(Class<?> clazz, Class<? extends Annotation> annotation) {
-        return classAnnotationsByType.get(clazz).get(annotation);
+        return recordedAnnotations.get(clazz).annotations.byType.get(annotation);
     }
 
     public static boolean isClassAnnotationPresent(Class<?> clazz, Class<? extends Annotation> annotation) {
-        return classAnnotationsByType.get(clazz).containsKey(annotation);
+        return recordedAnnotations.get(clazz).annotations.byType.containsKey(annotation);
     }
 
     public static boolean isFieldDataRecorded(Field clazz) {
-        return fieldAnnotations.containsKey(clazz);
+        return recorded(clazz) != null;
     }
 
     public static Annotation[] getFieldAnnotations(Field clazz) {
-        return fieldAnnotations.get(clazz);
+        final AnnotationSet set = recorded(clazz);
+        return set == null ? null : set.annotations;
     }
 
     public static Annotation getFieldAnnotation(Field clazz, Class<? extends Annotation> annotation) {
-        return fieldAnnotationsByType.get(clazz).get(annotation);
+        return recorded(clazz).byType.get(annotation);
     }
 
     public static boolean isFieldAnnotationPresent(Field clazz, Class<? extends Annotation> annotation) {
-        return fieldAnnotationsByType.get(clazz).containsKey(annotation);
+        return recorded(clazz).byType.containsKey(annotation);
     }
 
     public static boolean isMethodDataRecorded(Method clazz) {
-        return methodAnnotations.containsKey(clazz);
+        return recorded(clazz) != null;
     }
 
     public static Annotation[] getMethodAnnotations(Method clazz) {
-        return methodAnnotations.get(clazz);
+        final AnnotationSet set = recorded(clazz);
+        return set == null ? null : set.annotations;
     }
 
     public static Annotation getMethodAnnotation(Method clazz, Class<? extends Annotation> annotation) {
-        return methodAnnotationsByType.get(clazz).get(annotation);
+        return recorded(clazz).byType.get(annotation);
     }
 
     public static boolean isMethodAnnotationPresent(Method clazz, Class<? extends Annotation> annotation) {
-        return methodAnnotationsByType.get(clazz).containsKey(annotation);
+        return recorded(clazz).byType.containsKey(annotation);
     }
 
     public static Annotation[][] getMethodParameterAnnotations(Method clazz) {
-        return parameterAnnotations.get(clazz);
+        return recordedParameters(clazz);
     }
 
     // constructor
 
     public static boolean isConstructorDataRecorded(Constructor<?> clazz) {
-        return constructorAnnotations.containsKey(clazz);
+        return recorded(clazz) != null;
     }
 
     public static Annotation[] getConstructorAnnotations(Constructor<?> clazz) {
-        return constructorAnnotations.get(clazz);
+        final AnnotationSet set = recorded(clazz);
+        return set == null ? null : set.annotations;
     }
 
     public static Annotation getConstructorAnnotation(Constructor<?> clazz, Class<? extends Annotation> annotation) {
-        return constructorAnnotationsByType.get(clazz).get(annotation);
+        return recorded(clazz).byType.get(annotation);
     }
 
     public static boolean isConstructorAnnotationPresent(Constructor<?> clazz, Class<? extends Annotation> annotation) {
-        return constructorAnnotationsByType.get(clazz).containsKey(annotation);
+        return recorded(clazz).byType.containsKey(annotation);
     }
 
     public static Annotation[][] getMethodParameterAnnotations(Constructor<?> clazz) {
-        return constructorParameterAnnotations.get(clazz);
-    }
-
-    private static Class<?> createAnnotationsProxy(ClassLoader loader, AnnotationsAttribute annotations) {
-        String proxyName = ProxyDefinitionStore.getProxyName();
-        ClassFile proxy = new ClassFile(false, proxyName, "java.lang.Object");
-        proxy.setAccessFlags(AccessFlag.PUBLIC);
-        AttributeInfo a = annotations.copy(proxy.getConstPool(), Collections.EMPTY_MAP);
-        proxy.addAttribute(a);
-        try {
-            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(bytes);
-            try {
-                proxy.write(dos);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-            ProxyDefinitionStore.saveProxyDefinition(loader, proxyName, bytes.toByteArray());
-            return loader.loadClass(proxyName);
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private static Class<?> createParameterAnnotationsProxy(ClassLoader loader, ParameterAnnotationsAttribute annotations, int paramCount) {
-        String proxyName = ProxyDefinitionStore.getProxyName();
-        ClassFile proxy = new ClassFile(false, proxyName, "java.lang.Object");
-        proxy.setAccessFlags(AccessFlag.PUBLIC);
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < paramCount; ++i) {
-            sb.append("I");
-        }
-
-        MethodInfo method = new MethodInfo(proxy.getConstPool(), PROXY_METHOD_NAME, "(" + sb.toString() + ")V");
-        Bytecode b = new Bytecode(proxy.getConstPool());
-        b.add(Opcode.RETURN);
-        method.setAccessFlags(AccessFlag.PUBLIC);
-        method.setCodeAttribute(b.toCodeAttribute());
-        method.getCodeAttribute().setMaxLocals(paramCount + 1);
-        AttributeInfo an = annotations.copy(proxy.getConstPool(), Collections.EMPTY_MAP);
-        method.addAttribute(an);
-
-        try {
-            proxy.addMethod(method);
-            method.getCodeAttribute().computeMaxStack();
-            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(bytes);
-            try {
-                proxy.write(dos);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-            ProxyDefinitionStore.saveProxyDefinition(loader, proxyName, bytes.toByteArray());
-            return loader.loadClass(proxyName);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        return recordedParameters(clazz);
     }
 
     public static void recordClassAnnotations(Class<?> clazz, AnnotationsAttribute annotations, ChangedClassImpl changedClass) {
+        final ClassAnnotations data = recordedAnnotations.get(clazz);
         // no annotations
         if (annotations == null) {
-            Annotation[] ans = new Annotation[0];
-            classAnnotations.put(clazz, ans);
-            classAnnotationsByType.put(clazz, Collections.emptyMap());
+            data.annotations = AnnotationSet.EMPTY;
             for(Annotation annotation : clazz.getDeclaredAnnotations()) {
                 changedClass.changeClassAnnotation(new ChangedAnnotationImpl(null, annotation, ChangeType.REMOVE, changedClass, annotation.annotationType()));
             }
         } else {
-            final Class<?> pclass = createAnnotationsProxy(clazz.getClassLoader(), annotations);
-            classAnnotations.put(clazz, pclass.getAnnotations());
-            Map<Class<? extends Annotation>, Annotation> anVals = new HashMap<>();
-            classAnnotationsByType.put(clazz, anVals);
-            int count = 0;
-            for (Annotation a : pclass.getAnnotations()) {
-                anVals.put(a.annotationType(), a);
-                count++;
-            }
+            final AnnotationSet set = new AnnotationSet(AnnotationInstances.create(clazz.getClassLoader(), annotations));
+            data.annotations = set;
+            final Map<Class<? extends Annotation>, Annotation> anVals = set.byType;
             final Set<Class<? extends Annotation>> newAnnotations = new HashSet<>(anVals.keySet());
             for(Annotation annotation : clazz.getDeclaredAnnotations()) {
                 final Annotation newAnnotation = anVals.get(annotation.annotationType());
@@ -242,108 +172,141 @@ public class AnnotationDataStore {
                 changedClass.changeClassAnnotation(new ChangedAnnotationImpl(newAnnotation, null, ChangeType.ADD, changedClass, newAnnotationType));
             }
         }
+        classAnnotationsVersion.incrementAndGet();
     }
 
     public static void recordFieldAnnotations(Field field, AnnotationsAttribute annotations) {
-        // no annotations
-        if (annotations == null) {
-            Annotation[] ans = new Annotation[0];
-            fieldAnnotations.put(field, ans);
-            fieldAnnotationsByType.put(field, Collections.emptyMap());
-            return;
-        }
-        Class<?> pclass = createAnnotationsProxy(field.getDeclaringClass().getClassLoader(), annotations);
-        fieldAnnotations.put(field, pclass.getAnnotations());
-        Map<Class<? extends Annotation>, Annotation> anVals = new HashMap<>();
-        fieldAnnotationsByType.put(field, anVals);
-        int count = 0;
-        for (Annotation a : pclass.getAnnotations()) {
-            anVals.put(a.annotationType(), a);
-            count++;
-        }
+        record(field, annotations);
     }
 
     public static void recordMethodAnnotations(Method method, AnnotationsAttribute annotations) {
-        // no annotations
-        if (annotations == null) {
-            Annotation[] ans = new Annotation[0];
-            methodAnnotations.put(method, ans);
-            methodAnnotationsByType.put(method, Collections.emptyMap());
-            return;
-        }
-        Class<?> pclass = createAnnotationsProxy(method.getDeclaringClass().getClassLoader(), annotations);
-        methodAnnotations.put(method, pclass.getAnnotations());
-        Map<Class<? extends Annotation>, Annotation> anVals = new HashMap<>();
-        methodAnnotationsByType.put(method, anVals);
-        int count = 0;
-        for (Annotation a : pclass.getAnnotations()) {
-            anVals.put(a.annotationType(), a);
-            count++;
-        }
+        record(method, annotations);
     }
 
     public static void recordMethodParameterAnnotations(Method method, ParameterAnnotationsAttribute annotations) {
-        // no annotations
-        if (annotations == null) {
-            Annotation[][] ans = new Annotation[method.getParameterAnnotations().length][0];
-            parameterAnnotations.put(method, ans);
-            return;
-        }
-
-        Class<?> pclass = createParameterAnnotationsProxy(method.getDeclaringClass().getClassLoader(), annotations, method.getParameterTypes().length);
-        Class<?>[] types = new Class[method.getParameterTypes().length];
-        for (int i = 0; i < types.length; ++i) {
-            types[i] = int.class;
-        }
-        try {
-            Method anMethod = pclass.getMethod(PROXY_METHOD_NAME, types);
-            parameterAnnotations.put(method, anMethod.getParameterAnnotations());
+        recordParameters(method, annotations, method.getParameterCount());
+    }
 
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+    public static void recordConstructorAnnotations(Constructor<?> constructor, AnnotationsAttribute annotations) {
+        record(constructor, annotations);
+    }
 
+    public static void recordConstructorParameterAnnotations(Constructor<?> method, ParameterAnnotationsAttribute annotations) {
+        recordParameters(method, annotations, method.getParameterCount());
     }
 
-    public static void recordConstructorAnnotations(Constructor<?> constructor, AnnotationsAttribute annotations) {
+    private static void record(Member member, AnnotationsAttribute annotations) {
         // no annotations
         if (annotations == null) {
-            Annotation[] ans = new Annotation[0];
-            constructorAnnotations.put(constructor, ans);
-            constructorAnnotationsByType.put(constructor, Collections.emptyMap());
+            annotations(member).member(member, true).annotations = AnnotationSet.EMPTY;
             return;
         }
-        Class<?> pclass = createAnnotationsProxy(constructor.getDeclaringClass().getClassLoader(), annotations);
-        constructorAnnotations.put(constructor, pclass.getAnnotations());
-        Map<Class<? extends Annotation>, Annotation> anVals = new HashMap<>();
-        constructorAnnotationsByType.put(constructor, anVals);
-        int count = 0;
-        for (Annotation a : pclass.getAnnotations()) {
-            anVals.put(a.annotationType(), a);
-            count++;
-        }
-
+        final Annotation[] created = AnnotationInstances.create(member.getDeclaringClass().getClassLoader(), annotations);
+        annotations(member).member(member, true).annotations = new AnnotationSet(created);
     }
 
-    public static void recordConstructorParameterAnnotations(Constructor<?> method, ParameterAnnotationsAttribute annotations) {
+    private static void recordParameters(Member member, ParameterAnnotationsAttribute annotations, int paramCount) {
         // no annotations
         if (annotations == null) {
-            Annotation[][] ans = new Annotation[method.getParameterAnnotations().length][0];
-            constructorParameterAnnotations.put(method, ans);
+            annotations(member).member(member, true).parameterAnnotations = new Annotation[paramCount][0];
             return;
         }
+        final Annotation[][] created = AnnotationInstances.create(member.getDeclaringClass().getClassLoader(), annotations, paramCount);
+        annotations(member).member(member, true).parameterAnnotations = created;
+    }
+
+    private static ClassAnnotations annotations(Member member) {
+        return recordedAnnotations.get(member.getDeclaringClass());
+    }
+
+    private static AnnotationSet recorded(Member member) {
+        final MemberAnnotations data = annotations(member).member(member, false);
+        return data == null ? null : data.annotations;
+    }
 
-        Class<?> pclass = createParameterAnnotationsProxy(method.getDeclaringClass().getClassLoader(), annotations, method.getParameterTypes().length);
-        Class<?>[] types = new Class[method.getParameterTypes().length];
-        for (int i = 0; i < types.length; ++i) {
-            types[i] = int.class;
+    private static Annotation[][] recordedParameters(Member member) {
+        final MemberAnnotations data = annotations(member).member(member, false);
+        return data == null ? null : data.parameterAnnotations;
+    }
+
+    /**
+     * The recorded annotations of a class and all its members
+     */
+    private static final class ClassAnnotations {
+
+        /**
+         * the class level annotations, or <code>null</code> if they have not been recorded
+         */
+        private volatile AnnotationSet annotations;
+
+        /**
+         * members by name. As there are normally very few members with the same name they are searched linearly.
+         */
+        private final Map<String, MemberAnnotations[]> members = new ConcurrentHashMap<>();
+
+        MemberAnnotations member(Member member, boolean create) {
+            final String name = member instanceof Constructor ? "<init>" : member.getName();
+            final MemberAnnotations[] existing = members.get(name);
+            if (existing != null) {
+                for (MemberAnnotations data : existing) {
+                    if (data.member.equals(member)) {
+                        return data;
+                    }
+                }
+            }
+            if (!create) {
+                return null;
+            }
+            final MemberAnnotations[] result = new MemberAnnotations[1];
+            members.compute(name, (key, current) -> {
+                if (current != null) {
+                    for (MemberAnnotations data : current) {
+                        if (data.member.equals(member)) {
+                            result[0] = data;
+                            return current;
+                        }
+                    }
+                }
+                result[0] = new MemberAnnotations(member);
+                if (current == null) {
+                    return new MemberAnnotations[]{result[0]};
+                }
+                final MemberAnnotations[] updated = Arrays.copyOf(current, current.length + 1);
+                updated[current.length] = result[0];
+                return updated;
+            });
+            return result[0];
         }
-        try {
-            Method anMethod = pclass.getMethod(PROXY_METHOD_NAME, types);
-            constructorParameterAnnotations.put(method, anMethod.getParameterAnnotations());
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    }
+
+    private static final class MemberAnnotations {
+        private final Member member;
+        private volatile AnnotationSet annotations;
+        private volatile Annotation[][] parameterAnnotations;
+
+        private MemberAnnotations(Member member) {
+            this.member = member;
         }
+    }
+
+    private static final class AnnotationSet {
+
+        private static final AnnotationSet EMPTY = new AnnotationSet(new Annotation[0]);
 
+        private final Annotation[] annotations;
+        private final Map<Class<? extends Annotation>, Annotation> byType;
+
+        private AnnotationSet(Annotation[] annotations) {
+            this.annotations = annotations;
+            if (annotations.length == 0) {
+                byType = Collections.emptyMap();
+            } else {
+                final Map<Class<? extends Annotation>, Annotation> byType = new HashMap<>();
+                for (Annotation a : annotations) {
+                    byType.put(a.annotationType(), a);
+                }
+                this.byType = byType;
+            }
+        }
     }
 }
@@ -0,0 +1,429 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.data;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.AnnotationTypeMismatchException;
+import java.lang.annotation.IncompleteAnnotationException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.ParameterAnnotationsAttribute;
+import javassist.bytecode.annotation.AnnotationMemberValue;
+import javassist.bytecode.annotation.ArrayMemberValue;
+import javassist.bytecode.annotation.BooleanMemberValue;
+import javassist.bytecode.annotation.ByteMemberValue;
+import javassist.bytecode.annotation.CharMemberValue;
+import javassist.bytecode.annotation.ClassMemberValue;
+import javassist.bytecode.annotation.DoubleMemberValue;
+import javassist.bytecode.annotation.EnumMemberValue;
+import javassist.bytecode.annotation.FloatMemberValue;
+import javassist.bytecode.annotation.IntegerMemberValue;
+import javassist.bytecode.annotation.LongMemberValue;
+import javassist.bytecode.annotation.MemberValue;
+import javassist.bytecode.annotation.ShortMemberValue;
+import javassist.bytecode.annotation.StringMemberValue;
+
+/**
+ * Creates annotation instances directly from the annotations attributes of a class file.
+ * <p>
+ * The instances are dynamic proxies that follow the contract of {@link Annotation}, so the only classes that are
+ * defined are the proxy classes for each annotation type, which the JDK shares between all instances of the same
+ * type. Member values that can not be resolved throw the same exceptions the JDK would, when the member is accessed.
+ *
+ * @author Stuart Douglas
+ */
+final class AnnotationInstances {
+
+    private static final Annotation[] NO_ANNOTATIONS = new Annotation[0];
+
+    private AnnotationInstances() {
+
+    }
+
+    static Annotation[] create(ClassLoader loader, AnnotationsAttribute attribute) {
+        return create(loader, attribute.getAnnotations());
+    }
+
+    /**
+     * Creates the parameter annotations for a method or constructor with the given number of parameters. If the
+     * attribute has fewer entries than there are parameters (e.g. for the synthetic parameters of inner class
+     * constructors) the leading parameters have no annotations, as they do in the JDK.
+     */
+    static Annotation[][] create(ClassLoader loader, ParameterAnnotationsAttribute attribute, int paramCount) {
+        final javassist.bytecode.annotation.Annotation[][] annotations = attribute.getAnnotations();
+        final Annotation[][] result = new Annotation[paramCount][];
+        final int offset = paramCount - annotations.length;
+        for (int i = 0; i < paramCount; ++i) {
+            if (i < offset || i - offset >= annotations.length) {
+                result[i] = NO_ANNOTATIONS;
+            } else {
+                result[i] = create(loader, annotations[i - offset]);
+            }
+        }
+        return result;
+    }
+
+    private static Annotation[] create(ClassLoader loader, javassist.bytecode.annotation.Annotation[] annotations) {
+        final List<Annotation> result = new ArrayList<>(annotations.length);
+        for (javassist.bytecode.annotation.Annotation annotation : annotations) {
+            final Class<?> type;
+            try {
+                type = Class.forName(annotation.getTypeName(), false, loader);
+            } catch (ClassNotFoundException | LinkageError e) {
+                // the JDK ignores annotations whose type is not present
+                continue;
+            }
+            if (!type.isAnnotation()) {
+                continue;
+            }
+            final Retention retention = type.getAnnotation(Retention.class);
+            if (retention == null || retention.value() != RetentionPolicy.RUNTIME) {
+                continue;
+            }
+            result.add(create(type.asSubclass(Annotation.class), annotation, loader));
+        }
+        return result.toArray(new Annotation[result.size()]);
+    }
+
+    private static Annotation create(Class<? extends Annotation> type, javassist.bytecode.annotation.Annotation annotation, ClassLoader loader) {
+        final Map<String, Object> values = new LinkedHashMap<>();
+        for (Method member : type.getDeclaredMethods()) {
+            if (member.getParameterCount() != 0) {
+                continue;
+            }
+            final String name = member.getName();
+            final MemberValue value = annotation.getMemberValue(name);
+            if (value != null) {
+                values.put(name, value(value, member.getReturnType(), member, loader));
+            } else if (member.getDefaultValue() != null) {
+                values.put(name, member.getDefaultValue());
+            } else {
+                values.put(name, (Supplier<RuntimeException>) () -> new IncompleteAnnotationException(type, name));
+            }
+        }
+        final ClassLoader proxyLoader = type.getClassLoader();
+        return type.cast(Proxy.newProxyInstance(proxyLoader, new Class<?>[]{type}, new Handler(type, values)));
+    }
+
+    /**
+     * Converts a member value to the type of the annotation member. The member is the annotation method the value
+     * belongs to, which is reported if the value does not match its type.
+     */
+    private static Object value(MemberValue value, Class<?> type, Method member, ClassLoader loader) {
+        if (value instanceof BooleanMemberValue && type == boolean.class) {
+            return ((BooleanMemberValue) value).getValue();
+        } else if (value instanceof ByteMemberValue && type == byte.class) {
+            return ((ByteMemberValue) value).getValue();
+        } else if (value instanceof CharMemberValue && type == char.class) {
+            return ((CharMemberValue) value).getValue();
+        } else if (value instanceof ShortMemberValue && type == short.class) {
+            return ((ShortMemberValue) value).getValue();
+        } else if (value instanceof IntegerMemberValue && type == int.class) {
+            return ((IntegerMemberValue) value).getValue();
+        } else if (value instanceof LongMemberValue && type == long.class) {
+            return ((LongMemberValue) value).getValue();
+        } else if (value instanceof FloatMemberValue && type == float.class) {
+            return ((FloatMemberValue) value).getValue();
+        } else if (value instanceof DoubleMemberValue && type == double.class) {
+            return ((DoubleMemberValue) value).getValue();
+        } else if (value instanceof StringMemberValue && type == String.class) {
+            return ((StringMemberValue) value).getValue();
+        } else if (value instanceof ClassMemberValue && type == Class.class) {
+            final String className = ((ClassMemberValue) value).getValue();
+            try {
+                return loadClass(className, loader);
+            } catch (ClassNotFoundException | LinkageError e) {
+                return (Supplier<RuntimeException>) () -> new TypeNotPresentException(className, e);
+            }
+        } else if (value instanceof EnumMemberValue && type.isEnum()) {
+            final String constant = ((EnumMemberValue) value).getValue();
+            for (Object e : type.getEnumConstants()) {
+                if (((Enum<?>) e).name().equals(constant)) {
+                    return e;
+                }
+            }
+            @SuppressWarnings("unchecked")
+            final Class<? extends Enum<?>> enumType = (Class<? extends Enum<?>>) type;
+            return (Supplier<RuntimeException>) () -> new EnumConstantNotPresentException(enumType, constant);
+        } else if (value instanceof AnnotationMemberValue && type.isAnnotation()) {
+            return create(type.asSubclass(Annotation.class), ((AnnotationMemberValue) value).getValue(), loader);
+        } else if (value instanceof ArrayMemberValue && type.isArray()) {
+            final MemberValue[] elements = ((ArrayMemberValue) value).getValue();
+            final int length = elements == null ? 0 : elements.length;
+            final Object array = Array.newInstance(type.getComponentType(), length);
+            for (int i = 0; i < length; ++i) {
+                final Object element = value(elements[i], type.getComponentType(), member, loader);
+                if (element instanceof Supplier) {
+                    return element;
+                }
+                Array.set(array, i, element);
+            }
+            return array;
+        }
+        final String foundType = value.getClass().getSimpleName() + "[" + value + "]";
+        return (Supplier<RuntimeException>) () -> new AnnotationTypeMismatchException(member, foundType);
+    }
+
+    private static Class<?> loadClass(String name, ClassLoader loader) throws ClassNotFoundException {
+        int dimensions = 0;
+        while (name.endsWith("[]")) {
+            name = name.substring(0, name.length() - 2);
+            ++dimensions;
+        }
+        Class<?> result;
+        switch (name) {
+            case "boolean":
+                result = boolean.class;
+                break;
+            case "byte":
+                result = byte.class;
+                break;
+            case "char":
+                result = char.class;
+                break;
+            case "short":
+                result = short.class;
+                break;
+            case "int":
+                result = int.class;
+                break;
+            case "long":
+                result = long.class;
+                break;
+            case "float":
+                result = float.class;
+                break;
+            case "double":
+                result = double.class;
+                break;
+            case "void":
+                result = void.class;
+                break;
+            default:
+                result = Class.forName(name, false, loader);
+        }
+        for (int i = 0; i < dimensions; ++i) {
+            result = Array.newInstance(result, 0).getClass();
+        }
+        return result;
+    }
+
+    private static final class Handler implements InvocationHandler {
+
+        private final Class<? extends Annotation> type;
+        private final Map<String, Object> values;
+
+        private Handler(Class<? extends Annotation> type, Map<String, Object> values) {
+            this.type = type;
+            this.values = values;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final String name = method.getName();
+            final int paramCount = method.getParameterCount();
+            if (paramCount == 1 && name.equals("equals") && method.getParameterTypes()[0] == Object.class) {
+                return equalsImpl(proxy, args[0]);
+            } else if (paramCount != 0) {
+                throw new AssertionError("Too many parameters for an annotation method");
+            }
+            switch (name) {
+                case "hashCode":
+                    return hashCodeImpl();
+                case "toString":
+                    return toStringImpl();
+                case "annotationType":
+                    return type;
+                default:
+                    return member(name);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object member(String name) {
+            final Object value = values.get(name);
+            if (value instanceof Supplier) {
+                throw ((Supplier<RuntimeException>) value).get();
+            }
+            if (value != null && value.getClass().isArray() && Array.getLength(value) != 0) {
+                return cloneArray(value);
+            }
+            return value;
+        }
+
+        private boolean equalsImpl(Object proxy, Object other) {
+            if (proxy == other) {
+                return true;
+            }
+            if (!type.isInstance(other)) {
+                return false;
+            }
+            if (Proxy.isProxyClass(other.getClass()) && Proxy.getInvocationHandler(other) instanceof Handler) {
+                final Handler handler = (Handler) Proxy.getInvocationHandler(other);
+                for (Map.Entry<String, Object> entry : values.entrySet()) {
+                    if (!memberEquals(entry.getValue(), handler.values.get(entry.getKey()))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                final Object otherValue;
+                try {
+                    final Method member = type.getDeclaredMethod(entry.getKey());
+                    member.setAccessible(true);
+                    otherValue = member.invoke(other);
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    return false;
+                }
+                if (!memberEquals(entry.getValue(), otherValue)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int hashCodeImpl() {
+            int result = 0;
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                result += (127 * entry.getKey().hashCode()) ^ memberHashCode(entry.getValue());
+            }
+            return result;
+        }
+
+        private String toStringImpl() {
+            final StringBuilder sb = new StringBuilder("@");
+            sb.append(type.getName());
+            sb.append('(');
+            boolean first = true;
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                if (!first) {
+                    sb.append(", ");
+                }
+                first = false;
+                sb.append(entry.getKey());
+                sb.append('=');
+                appendValue(sb, entry.getValue());
+            }
+            sb.append(')');
+            return sb.toString();
+        }
+
+        /**
+         * Appends a member value, with strings and chars quoted and escaped as they are by the JDK
+         */
+        private static void appendValue(StringBuilder sb, Object value) {
+            if (value instanceof String) {
+                sb.append('"');
+                final String string = (String) value;
+                for (int i = 0; i < string.length(); ++i) {
+                    appendQuoted(sb, string.charAt(i));
+                }
+                sb.append('"');
+            } else if (value instanceof Character) {
+                sb.append('\'');
+                appendQuoted(sb, (Character) value);
+                sb.append('\'');
+            } else if (value != null && value.getClass().isArray()) {
+                sb.append('{');
+                final int length = Array.getLength(value);
+                for (int i = 0; i < length; ++i) {
+                    if (i != 0) {
+                        sb.append(", ");
+                    }
+                    appendValue(sb, Array.get(value, i));
+                }
+                sb.append('}');
+            } else {
+                sb.append(value);
+            }
+        }
+
+        private static void appendQuoted(StringBuilder sb, char c) {
+            switch (c) {
+                case '\b':
+                    sb.append("\\b");
+                    break;
+                case '\f':
+                    sb.append("\\f");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\'':
+                    sb.append("\\'");
+                    break;
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                default:
+                    if (c >= ' ' && c <= '~') {
+                        sb.append(c);
+                    } else {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    }
+            }
+        }
+
+        private static boolean memberEquals(Object value, Object other) {
+            if (value instanceof Supplier || other instanceof Supplier) {
+                return false;
+            }
+            return Arrays.deepEquals(new Object[]{value}, new Object[]{other});
+        }
+
+        private static int memberHashCode(Object value) {
+            if (value instanceof Supplier || value == null) {
+                return 0;
+            }
+            if (!value.getClass().isArray()) {
+                return value.hashCode();
+            }
+            // the hash of a single element array is 31 + the hash of the element
+            return Arrays.deepHashCode(new Object[]{value}) - 31;
+        }
+
+        private static Object cloneArray(Object array) {
+            final int length = Array.getLength(array);
+            final Object result = Array.newInstance(array.getClass().getComponentType(), length);
+            System.arraycopy(array, 0, result, 0, length);
+            return result;
+        }
+    }
+}
@@ -21,11 +21,11 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
 
 import org.fakereplace.core.Constants;
 import org.fakereplace.util.DescriptorUtils;
@@ -38,27 +38,34 @@ import javassist.bytecode.MethodInfo;
  * This class holds everything there is to know about a class that has been seen
  * by the transformer. This stores the information about the original class, not
  * about any modifications
+ * <p>
+ * As this is retained for every class that is loaded the members are stored in arrays, which are sorted so
+ * that members can be looked up by name with a binary search.
  *
  * @author stuart
  */
 public class BaseClassData {
 
+    private static final Comparator<MethodData> METHOD_ORDER = Comparator.comparing(MethodData::getMethodName).thenComparing(MethodData::getDescriptor);
+
+    private static final Comparator<FieldData> FIELD_ORDER = Comparator.comparing(FieldData::getName).thenComparing(FieldData::getType);
+
     private final String className;
     private final String internalName;
-    private final Set<MethodData> methods;
-    private final List<FieldData> fields;
+    private final MethodData[] methods;
+    private final FieldData[] fields;
     private final ClassLoader loader;
     private final String superClassName;
     private final boolean replaceable;
 
     public BaseClassData(ClassFile file, ClassLoader loader, boolean replaceable) {
-        className = file.getName();
+        className = file.getName().intern();
         this.replaceable = replaceable;
         internalName = Descriptor.toJvmName(file.getName());
         this.loader = loader;
-        superClassName = file.getSuperclass();
+        superClassName = file.getSuperclass() == null ? null : file.getSuperclass().intern();
         boolean finalMethod = false;
-        Set<MethodData> meths = new HashSet<>();
+        List<MethodData> meths = new ArrayList<>();
         for (Object o : file.getMethods()) {
             MethodInfo m = (MethodInfo) o;
             MemberType type = MemberType.NORMAL;
@@ -73,27 +80,27 @@ public class BaseClassData {
             MethodData md = new MethodData(m.getName(), m.getDescriptor(), className, type, m.getAccessFlags(), finalMethod);
             meths.add(md);
         }
-        this.methods = Collections.unmodifiableSet(meths);
+        this.methods = sortedMethods(meths);
         List<FieldData> fieldData = new ArrayList<>();
         for (Object o : file.getFields()) {
             FieldInfo m = (FieldInfo) o;
             MemberType mt = MemberType.NORMAL;
             fieldData.add(new FieldData(m, mt, className, m.getAccessFlags()));
         }
-        this.fields = Collections.unmodifiableList(fieldData);
+        this.fields = sortedFields(fieldData);
     }
 
     public BaseClassData(Class<?> cls) {
-        className = cls.getName();
+        className = cls.getName().intern();
         internalName = Descriptor.toJvmName(cls.getName());
         this.loader = cls.getClassLoader();
         replaceable = false;
         if (cls.getSuperclass() != null) {
-            superClassName = cls.getSuperclass().getName();
+            superClassName = cls.getSuperclass().getName().intern();
         } else {
             superClassName = null;
         }
-        Set<MethodData> meths = new HashSet<>();
+        List<MethodData> meths = new ArrayList<>();
         for (Method m : cls.getDeclaredMethods()) {
             MemberType type = MemberType.NORMAL;
             final String descriptor = DescriptorUtils.getDescriptor(m);
@@ -114,12 +121,37 @@ public class BaseClassData {
             meths.add(md);
         }
 
-        this.methods = Collections.unmodifiableSet(meths);
+        this.methods = sortedMethods(meths);
         List<FieldData> fieldData = new ArrayList<>();
         for (Field m : cls.getDeclaredFields()) {
             fieldData.add(new FieldData(m));
         }
-        this.fields = Collections.unmodifiableList(fieldData);
+        this.fields = sortedFields(fieldData);
+    }
+
+    /**
+     * Creates base class data from members that are already sorted
+     */
+    BaseClassData(String className, String superClassName, ClassLoader loader, boolean replaceable, MethodData[] methods, FieldData[] fields) {
+        this.className = className.intern();
+        this.internalName = Descriptor.toJvmName(className);
+        this.superClassName = superClassName == null ? null : superClassName.intern();
+        this.loader = loader;
+        this.replaceable = replaceable;
+        this.methods = methods;
+        this.fields = fields;
+    }
+
+    private static MethodData[] sortedMethods(List<MethodData> methods) {
+        MethodData[] ret = methods.toArray(new MethodData[methods.size()]);
+        Arrays.sort(ret, METHOD_ORDER);
+        return ret;
+    }
+
+    private static FieldData[] sortedFields(List<FieldData> fields) {
+        FieldData[] ret = fields.toArray(new FieldData[fields.size()]);
+        Arrays.sort(ret, FIELD_ORDER);
+        return ret;
     }
 
     public String getSuperClassName() {
@@ -139,11 +171,11 @@ public class BaseClassData {
     }
 
     public Collection<MethodData> getMethods() {
-        return methods;
+        return Collections.unmodifiableList(Arrays.asList(methods));
     }
 
     public Collection<FieldData> getFields() {
-        return fields;
+        return Collections.unmodifiableList(Arrays.asList(fields));
     }
 
     public boolean isReplaceable() {
@@ -151,17 +183,37 @@ public class BaseClassData {
     }
 
     public FieldData getField(String fieldName) {
-        for(FieldData field : fields) {
-            if(field.getName().equals(fieldName)) {
-                return field;
+        int low = 0;
+        int high = fields.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int c = fields[mid].getName().compareTo(fieldName);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return fields[mid];
             }
         }
         return null;
     }
 
     public MethodData getMethodOrConstructor(String methodName, String methodDesc) {
-        for(MethodData method : methods) {
-            if(method.getMethodName().equals(methodName) && method.getDescriptor().equals(methodDesc)) {
+        int low = 0;
+        int high = methods.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final MethodData method = methods[mid];
+            int c = method.getMethodName().compareTo(methodName);
+            if (c == 0) {
+                c = method.getDescriptor().compareTo(methodDesc);
+            }
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
                 return method;
             }
         }
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Off heap storage for the base class data of a single class loader.
+ * <p>
+ * The data is serialized into direct buffers when the class is loaded, and decoded again when it is
+ * requested. Decoded data is held in a soft reference, so data that is in use is not decoded over and
+ * over, but it does not stay on the heap for the life of the JVM. The buffers start small and double in
+ * size as they fill up, so loaders with only a few replaceable classes do not reserve a large amount of
+ * direct memory. The buffers are released when the class loader is collected.
+ *
+ * @author Stuart Douglas
+ */
+final class BaseClassDataArena {
+
+    private static final int INITIAL_CHUNK_SIZE = 1 << 12;
+
+    private static final int MAX_CHUNK_SIZE = 1 << 20;
+
+    private static final MemberType[] MEMBER_TYPES = MemberType.values();
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * guarded by this
+     */
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+
+    /**
+     * guarded by this
+     */
+    private ByteBuffer current;
+
+    void put(String className, BaseClassData data) {
+        entries.put(className, new Entry(store(encode(data))));
+    }
+
+    boolean contains(String className) {
+        return entries.containsKey(className);
+    }
+
+    BaseClassData get(String className, ClassLoader loader) {
+        final Entry entry = entries.get(className);
+        if (entry == null) {
+            return null;
+        }
+        final SoftReference<BaseClassData> decoded = entry.decoded;
+        BaseClassData data = decoded == null ? null : decoded.get();
+        if (data == null) {
+            data = decode(load(entry.address), loader);
+            entry.decoded = new SoftReference<>(data);
+        }
+        return data;
+    }
+
+    /**
+     * Returns the class data of a class that has not been redefined. It is derived from the base data when it is
+     * needed and only held in a soft reference, as it references all the same members as the base data.
+     */
+    ClassData getClassData(String className, ClassLoader loader) {
+        final Entry entry = entries.get(className);
+        if (entry == null) {
+            return null;
+        }
+        final SoftReference<ClassData> derived = entry.classData;
+        ClassData data = derived == null ? null : derived.get();
+        if (data == null) {
+            data = new ClassDataBuilder(get(className, loader)).buildClassData();
+            entry.classData = new SoftReference<>(data);
+        }
+        return data;
+    }
+
+    private synchronized long store(byte[] data) {
+        final int required = data.length + 4;
+        if (current == null || current.remaining() < required) {
+            final int size = current == null ? INITIAL_CHUNK_SIZE : Math.min(MAX_CHUNK_SIZE, current.capacity() * 2);
+            current = ByteBuffer.allocateDirect(Math.max(size, required));
+            chunks.add(current);
+        }
+        final int offset = current.position();
+        current.putInt(data.length);
+        current.put(data);
+        return ((long) (chunks.size() - 1) << 32) | offset;
+    }
+
+    private byte[] load(long address) {
+        final ByteBuffer buffer;
+        synchronized (this) {
+            buffer = chunks.get((int) (address >>> 32)).duplicate();
+        }
+        buffer.position((int) address);
+        final byte[] data = new byte[buffer.getInt()];
+        buffer.get(data);
+        return data;
+    }
+
+    private static byte[] encode(BaseClassData data) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(data.getClassName());
+            out.writeBoolean(data.getSuperClassName() != null);
+            if (data.getSuperClassName() != null) {
+                out.writeUTF(data.getSuperClassName());
+            }
+            out.writeBoolean(data.isReplaceable());
+            out.writeInt(data.getMethods().size());
+            for (MethodData method : data.getMethods()) {
+                out.writeUTF(method.getMethodName());
+                out.writeUTF(method.getDescriptor());
+                out.writeByte(method.getType().ordinal());
+                out.writeInt(method.getAccessFlags());
+                out.writeBoolean(method.isFinalMethod());
+            }
+            out.writeInt(data.getFields().size());
+            for (FieldData field : data.getFields()) {
+                out.writeUTF(field.getName());
+                out.writeUTF(field.getType());
+                out.writeByte(field.getMemberType().ordinal());
+                out.writeInt(field.getAccessFlags());
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static BaseClassData decode(byte[] bytes, ClassLoader loader) {
+        try {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            final String className = in.readUTF();
+            final String superClassName = in.readBoolean() ? in.readUTF() : null;
+            final boolean replaceable = in.readBoolean();
+            final MethodData[] methods = new MethodData[in.readInt()];
+            for (int i = 0; i < methods.length; ++i) {
+                final String name = in.readUTF();
+                final String descriptor = in.readUTF();
+                final MemberType type = MEMBER_TYPES[in.readByte()];
+                final int accessFlags = in.readInt();
+                methods[i] = new MethodData(name, descriptor, className, type, accessFlags, in.readBoolean());
+            }
+            final FieldData[] fields = new FieldData[in.readInt()];
+            for (int i = 0; i < fields.length; ++i) {
+                final String name = in.readUTF();
+                final String type = in.readUTF();
+                final MemberType memberType = MEMBER_TYPES[in.readByte()];
+                fields[i] = new FieldData(name, type, className, memberType, in.readInt());
+            }
+            return new BaseClassData(className, superClassName, loader, replaceable, methods, fields);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final class Entry {
+        private final long address;
+        /**
+         * null until the data is first requested, the data passed to put is not kept so it can be collected
+         */
+        private volatile SoftReference<BaseClassData> decoded;
+
+        /**
+         * null until the class data is first requested
+         */
+        private volatile SoftReference<ClassData> classData;
+
+        private Entry(long address) {
+            this.address = address;
+        }
+    }
+}
@@ -17,6 +17,7 @@
 
 package org.fakereplace.data;
 
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 import java.util.Collection;
 import java.util.Collections;
@@ -24,6 +25,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
 import org.fakereplace.util.DescriptorUtils;
@@ -31,6 +33,9 @@ import org.fakereplace.util.DescriptorUtils;
 /**
  * This class holds everything there is to know about a class that has been seen
  * by the transformer
+ * <p>
+ * Instances are immutable, every redefinition builds a new instance through a {@link ClassDataBuilder}
+ * which then replaces the previous one in the {@link ClassDataStore}.
  *
  * @author stuart
  */
@@ -54,15 +59,23 @@ public class ClassData {
 
     private final String className;
     private final String internalName;
-    private final Map<String, Map<String, Set<MethodData>>> methods = Collections.synchronizedMap(new HashMap<>());
-    private final Map<Method, MethodData> methodsByMethod = Collections.synchronizedMap(new HashMap<>());
-    private final Map<String, FieldData> fields = Collections.synchronizedMap(new HashMap<>());
-    private final Set<MethodData> methodSet = new HashSet<>();
+    private final Map<String, Map<String, Set<MethodData>>> methods = new HashMap<>();
+    /**
+     * cache of resolved methods, this is the only part of this class that changes after construction
+     */
+    private final Map<Method, MethodData> methodsByMethod = new ConcurrentHashMap<>();
+    private final Map<String, FieldData> fields = new HashMap<>();
+    private final Collection<MethodData> methodSet;
     private final ClassLoader loader;
     private final String superClassName;
     private final boolean signitureModified;
     private final boolean replaceable;
 
+    /**
+     * the resolved superclass data, this is only valid for the class data generation it was resolved in
+     */
+    private volatile SuperClassLink superClassLink;
+
 
     ClassData(BaseClassData data, Set<MethodData> addMethods, Set<MethodData> removedMethods, Set<FieldData> addedFields, Set<FieldData> removedFields) {
         className = data.getClassName();
@@ -97,11 +110,13 @@ public class ClassData {
             addMethod(m);
         }
 
-        for (String nm : methods.keySet()) {
-            for (String i : methods.get(nm).keySet()) {
-                methodSet.addAll(methods.get(nm).get(i));
+        final Set<MethodData> methodSet = new HashSet<>();
+        for (Map<String, Set<MethodData>> byArguments : methods.values()) {
+            for (Set<MethodData> overloads : byArguments.values()) {
+                methodSet.addAll(overloads);
             }
         }
+        this.methodSet = Collections.unmodifiableSet(methodSet);
     }
 
     public MethodData getData(Method method) {
@@ -112,21 +127,6 @@ public class ClassData {
         return res;
     }
 
-    ClassData(BaseClassData data) {
-        className = data.getClassName();
-        internalName = data.getInternalName();
-        loader = data.getLoader();
-        superClassName = data.getSuperClassName();
-        replaceable = data.isReplaceable();
-        for (MethodData m : data.getMethods()) {
-            addMethod(m);
-        }
-        for (FieldData f : data.getFields()) {
-            addField(f);
-        }
-        signitureModified = false;
-    }
-
     public boolean isSignitureModified() {
         return signitureModified;
     }
@@ -140,12 +140,24 @@ public class ClassData {
         if (superClassName == null) {
             return null;
         }
+        //read the generation first, if the superclass is redefined while we are resolving it the link will just be resolved again
+        final int generation = ClassDataStore.instance().getClassDataGeneration();
+        final SuperClassLink link = superClassLink;
+        if (link != null && link.generation == generation) {
+            final ClassData data = link.data.get();
+            if (data != null) {
+                return data;
+            }
+        }
         ClassData superClassInformation = ClassDataStore.instance().getModifiedClassData(loader, superClassName);
         ClassLoader l = loader;
         while (superClassInformation == null && l != null) {
             l = l.getParent();
             superClassInformation = ClassDataStore.instance().getModifiedClassData(l, superClassName);
         }
+        if (superClassInformation != null) {
+            superClassLink = new SuperClassLink(superClassInformation, generation);
+        }
         return superClassInformation;
     }
 
@@ -183,21 +195,6 @@ public class ClassData {
 
     }
 
-    /**
-     * replaces a method if it already exists
-     *
-     */
-    public void replaceMethod(MethodData data) {
-        if (!methods.containsKey(data.getMethodName())) {
-            methods.put(data.getMethodName(), new HashMap<>());
-        }
-        Map<String, Set<MethodData>> mts = methods.get(data.getMethodName());
-        Set<MethodData> rr = new HashSet<>();
-        mts.put(data.getArgumentDescriptor(), rr);
-        rr.add(data);
-
-    }
-
     private void addField(FieldData data) {
         fields.put(data.getName(), data);
     }
@@ -207,7 +204,7 @@ public class ClassData {
     }
 
     public Collection<FieldData> getFields() {
-        return fields.values();
+        return Collections.unmodifiableCollection(fields.values());
     }
 
     /**
@@ -233,4 +230,14 @@ public class ClassData {
     public boolean isReplaceable() {
         return replaceable;
     }
+
+    private static final class SuperClassLink {
+        private final WeakReference<ClassData> data;
+        private final int generation;
+
+        private SuperClassLink(ClassData data, int generation) {
+            this.data = new WeakReference<>(data);
+            this.generation = generation;
+        }
+    }
 }
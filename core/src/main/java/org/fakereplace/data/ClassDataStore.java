@@ -21,6 +21,7 @@ import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 import org.fakereplace.core.ClassIdentifier;
@@ -36,39 +37,203 @@ public class ClassDataStore {
     private final Map<String, MethodData> proxyNameToMethodData = new ConcurrentHashMap<>();
     private final Set<ClassIdentifier> replacedClasses = Collections.newSetFromMap(new ConcurrentHashMap<>());
 
+    /**
+     * The changes to classes that are currently being redefined. These are collected while the transformer chain
+     * runs, and are then published as a single new {@link ClassData} instance.
+     */
+    private final Map<ClassIdentifier, ClassDataBuilder> pendingData = new ConcurrentHashMap<>();
+
+    /**
+     * Per class replacement state, this allows the reflection entry points to decide if they need to do anything
+     * without having to look up the class loader data.
+     */
+    private final ClassValue<ReplacementState> replacementState = new ClassValue<ReplacementState>() {
+        @Override
+        protected ReplacementState computeValue(Class<?> type) {
+            final String name = type.getName();
+            final ClassLoader loader = type.getClassLoader();
+            boolean replaceable = false;
+            if (!BuiltinClassData.skipInstrumentation(name)) {
+                BaseClassData data = getBaseClassData(loader, name);
+                replaceable = data != null && data.isReplaceable();
+            }
+            return new ReplacementState(replaceable, replacedClasses.contains(new ClassIdentifier(name, loader)));
+        }
+    };
+
+    /**
+     * set once the first class has been replaced. Until then no reflective call needs to be intercepted, apart
+     * from hiding the members that are added to replaceable classes.
+     */
+    private volatile boolean anyClassReplaced;
+
+    /**
+     * incremented every time a class is replaced, and again once its new class data has been published
+     */
+    private final AtomicInteger replacementGeneration = new AtomicInteger();
+
+    /**
+     * incremented every time new class data is published for a redefined class
+     */
+    private final AtomicInteger classDataGeneration = new AtomicInteger();
+
+    /**
+     * if this is true the base data of replaceable classes is serialized off heap, and only decoded when it is needed
+     */
+    private volatile boolean offHeap;
+
     private ClassDataStore() {
 
     }
 
     public void markClassReplaced(Class<?> clazz) {
         replacedClasses.add(new ClassIdentifier(clazz.getName(), clazz.getClassLoader()));
+        replacementState.get(clazz).replaced = true;
+        anyClassReplaced = true;
+        replacementGeneration.incrementAndGet();
     }
 
     public boolean isClassReplaced(Class<?> clazz) {
-        return replacedClasses.contains(new ClassIdentifier(clazz.getName(), clazz.getClassLoader()));
+        if (!anyClassReplaced) {
+            return false;
+        }
+        return replacementState.get(clazz).replaced;
+    }
+
+    /**
+     * @return a number that changes every time a class is replaced, this can be used to tell if cached reflection
+     * data may be out of date
+     */
+    public int getReplacementGeneration() {
+        return replacementGeneration.get();
+    }
+
+    /**
+     * @return a counter that changes every time the class data of a redefined class is replaced. Links between
+     * {@link ClassData} instances are only valid for the generation they were resolved in.
+     */
+    public int getClassDataGeneration() {
+        return classDataGeneration.get();
+    }
+
+    /**
+     * @return <code>true</code> if any class has been replaced
+     */
+    public boolean isAnyClassReplaced() {
+        return anyClassReplaced;
+    }
+
+    /**
+     * Returns true if the class was instrumented to be replaceable when it was loaded. Reflective calls on classes
+     * that are not replaceable can go straight to the JDK, unless a class has actually been replaced.
+     */
+    public boolean isClassReplaceable(Class<?> clazz) {
+        return replacementState.get(clazz).replaceable;
     }
 
     public boolean isClassReplaced(String name, ClassLoader loader) {
         return replacedClasses.contains(new ClassIdentifier(name, loader));
     }
 
-    public void saveClassData(ClassLoader loader, String className, ClassDataBuilder data) {
+    /**
+     * Starts a redefinition of the given class. The class data will be rebuilt from the base data when the
+     * redefinition is published, discarding any changes from previous redefinitions.
+     */
+    public void beginRedefinition(ClassLoader loader, String className, BaseClassData data) {
         className = className.replace('/', '.');
-        Map<String, ClassData> map = ClassLoaderData.get(loader).getClassData();
-        map.put(className, data.buildClassData());
+        pendingData.put(new ClassIdentifier(className, loader), new ClassDataBuilder(data));
+    }
+
+    /**
+     * Applies a change to the class data of a class that is being transformed. The change is not visible until
+     * {@link #publishPendingData(ClassLoader, String)} is called.
+     */
+    public void modifyPendingData(ClassLoader loader, String className, Consumer<ClassDataBuilder> consumer) {
+        className = className.replace('/', '.');
+        final ClassIdentifier identifier = new ClassIdentifier(className, loader);
+        ClassDataBuilder builder = pendingData.get(identifier);
+        if (builder == null) {
+            // the class is being retransformed rather than redefined, so we start from the current data
+            builder = new ClassDataBuilder(getModifiedClassData(loader, className), getBaseClassData(loader, className));
+            pendingData.put(identifier, builder);
+        }
+        consumer.accept(builder);
+    }
+
+    /**
+     * Replaces the class data with the result of any pending changes
+     */
+    public void publishPendingData(ClassLoader loader, String className) {
+        className = className.replace('/', '.');
+        final ClassDataBuilder builder = pendingData.remove(new ClassIdentifier(className, loader));
+        if (builder != null) {
+            ClassLoaderData.get(loader).getClassData().put(className, builder.buildClassData());
+            classDataGeneration.incrementAndGet();
+            // cached reflection data built while the class was being redefined may have seen the old class data
+            replacementGeneration.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stores the base data of replaceable classes loaded from this point on off heap. Most of this data is only
+     * needed if the class is actually replaced, so this trades some CPU at redefinition time for a smaller heap.
+     */
+    public void storeBaseClassDataOffHeap() {
+        offHeap = true;
     }
 
     public void saveClassData(ClassLoader loader, String className, BaseClassData data) {
         className = className.replace('/', '.');
-        Map<String, BaseClassData> map = ClassLoaderData.get(loader).getBaseClassData();
-        map.put(className, data);
+        ClassLoaderData loaderData = ClassLoaderData.get(loader);
+        if (offHeap && data.isReplaceable()) {
+            loaderData.getBaseClassDataArena().put(className, data);
+        } else {
+            loaderData.getBaseClassData().put(className, data);
+        }
+    }
+
+    /**
+     * Records the structure fingerprint of a replaceable class as it was loaded
+     */
+    public void saveStructureFingerprint(ClassLoader loader, String className, long fingerprint) {
+        className = className.replace('/', '.');
+        ClassLoaderData.get(loader).getStructureFingerprints().put(className, fingerprint);
+    }
+
+    /**
+     * Returns true if a class that is being redefined still has the structure it was loaded with, so only
+     * its method bodies can have changed. Once a class has been redefined with a different structure this
+     * will always return false for it, as it will have picked up fake members and recorded annotations that
+     * only the replacement transformers know how to carry over.
+     */
+    public boolean isStructureUnchanged(ClassLoader loader, String className, long fingerprint) {
+        className = className.replace('/', '.');
+        final ClassLoaderData loaderData = ClassLoaderData.getIfPresent(loader);
+        if (loaderData == null) {
+            return false;
+        }
+        final Long original = loaderData.getStructureFingerprints().get(className);
+        if (original == null) {
+            return false;
+        }
+        if (original != fingerprint) {
+            loaderData.getStructureFingerprints().remove(className);
+            return false;
+        }
+        return true;
     }
 
     public ClassData getModifiedClassData(ClassLoader loader, String className) {
         className = className.replace('/', '.');
-        Map<String, ClassData> map = ClassLoaderData.get(loader).getClassData();
+        final ClassLoaderData loaderData = ClassLoaderData.get(loader);
+        Map<String, ClassData> map = loaderData.getClassData();
         ClassData cd = map.get(className);
         if (cd == null) {
+            if (loaderData.getBaseClassDataArena().contains(className)) {
+                // until the class is redefined this is just a view of the base data, so it is not kept on the heap
+                // either, frameworks look up the members of every class at boot
+                return loaderData.getBaseClassDataArena().getClassData(className, loader);
+            }
             BaseClassData dd = getBaseClassData(loader, className);
             if (dd == null) {
                 return null;
@@ -84,8 +249,12 @@ public class ClassDataStore {
 
     public BaseClassData getBaseClassData(ClassLoader loader, String className) {
         className = className.replace('/', '.');
-        Map<String, BaseClassData> map = ClassLoaderData.get(loader).getBaseClassData();
+        ClassLoaderData loaderData = ClassLoaderData.get(loader);
+        Map<String, BaseClassData> map = loaderData.getBaseClassData();
         if (!map.containsKey(className)) {
+            if (loaderData.getBaseClassDataArena().contains(className)) {
+                return loaderData.getBaseClassDataArena().get(className, loader);
+            }
             // if this is a class that is not being instrumented it is safe to
             // load the class and get the data
             if (BuiltinClassData.skipInstrumentation(className)) {
@@ -136,20 +305,13 @@ public class ClassDataStore {
         return INSTANCE;
     }
 
-    /**
-     * THIS IS A TEMPORARY METHOD
-     *
-     * It should only exist during the transition phase, while all rewriting is being moved into the transformers.
-     *
-     * Once all processing is in the transformer chain then it should be removed, and a class data builder passed through
-     * all the transformers instead
-     *
-     * TODO: remove this method
-     */
-    public void modifyCurrentData(ClassLoader loader, String name, Consumer<ClassDataBuilder> consumer) {
-        ClassData current = getModifiedClassData(loader, name);
-        ClassDataBuilder builder = new ClassDataBuilder(current, getBaseClassData(loader, name));
-        consumer.accept(builder);
-        ClassDataStore.instance().saveClassData(loader, name, builder);
+    private static final class ReplacementState {
+        private final boolean replaceable;
+        private volatile boolean replaced;
+
+        private ReplacementState(boolean replaceable, boolean replaced) {
+            this.replaceable = replaceable;
+            this.replaced = replaced;
+        }
     }
 }
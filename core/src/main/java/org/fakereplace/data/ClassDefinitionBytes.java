@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.data;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The bytes of a generated or added class that is waiting to be defined by its class loader.
+ * <p>
+ * Once the bytes have been handed to the class loader they are almost never needed again, so they
+ * are only kept in compressed form from that point on.
+ *
+ * @author Stuart Douglas
+ */
+public final class ClassDefinitionBytes {
+
+    private final int length;
+
+    /**
+     * guarded by this
+     */
+    private byte[] data;
+
+    /**
+     * guarded by this
+     */
+    private boolean compressed;
+
+    public ClassDefinitionBytes(byte[] data) {
+        this.length = data.length;
+        this.data = data;
+    }
+
+    /**
+     * Returns the class bytes, and compresses the retained copy if this is the first time they have been requested
+     */
+    public synchronized byte[] get() {
+        if (compressed) {
+            return inflate(data, length);
+        }
+        final byte[] result = data;
+        data = deflate(result);
+        compressed = true;
+        return result;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+            final byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int length) {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            final byte[] result = new byte[length];
+            int read = 0;
+            while (read < length && !inflater.finished()) {
+                read += inflater.inflate(result, read, length - read);
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new RuntimeException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
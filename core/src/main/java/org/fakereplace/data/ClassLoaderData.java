@@ -17,18 +17,20 @@
 
 package org.fakereplace.data;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 /**
  * All data that is stored for a class loader.
  * <p>
- * This is stored in a weak map, to prevent class loader leaks. Where possible if the environment allows for it this
- * should be manually cleaned up.
+ * This is stored in a concurrent map with weak class loader keys, to prevent class loader leaks. Where possible if
+ * the environment allows for it this should be manually cleaned up.
  *
  * @author Stuart Douglas
  */
@@ -38,16 +40,51 @@ public class ClassLoaderData {
 
     }
 
-    private static final Map<ClassLoader, ClassLoaderData> DATA = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final Map<LoaderKey, ClassLoaderData> DATA = new ConcurrentHashMap<>();
 
-    private final Map<String, ClassData> classData = Collections.synchronizedMap(new HashMap<>());
-    private final Map<String, BaseClassData> baseClassData = Collections.synchronizedMap(new HashMap<>());
-    private final Map<String, byte[]> proxyDefinitions = Collections.synchronizedMap(new HashMap<>());
-    private final Map<AttachmentKey, Object> attachments = Collections.synchronizedMap(new HashMap<>());
+    private static final ReferenceQueue<ClassLoader> STALE_LOADERS = new ReferenceQueue<>();
+
+    /**
+     * the data for the bootstrap class loader, this can never be collected
+     */
+    private static final ClassLoaderData BOOTSTRAP_DATA = new ClassLoaderData();
+
+    private final Map<String, ClassData> classData = new ConcurrentHashMap<>();
+    private final Map<String, BaseClassData> baseClassData = new ConcurrentHashMap<>();
+    private final BaseClassDataArena baseClassDataArena = new BaseClassDataArena();
+    private final Map<String, ClassDefinitionBytes> proxyDefinitions = new ConcurrentHashMap<>();
+    private final Map<String, ClassDefinitionBytes> addedClassDefinitions = new ConcurrentHashMap<>();
+    private final Map<String, Long> structureFingerprints = new ConcurrentHashMap<>();
+    private final Map<AttachmentKey, Object> attachments = new ConcurrentHashMap<>();
 
 
     public static ClassLoaderData get(ClassLoader loader) {
-        return DATA.computeIfAbsent(loader, (l) -> new ClassLoaderData());
+        if (loader == null) {
+            return BOOTSTRAP_DATA;
+        }
+        ClassLoaderData data = DATA.get(new LookupKey(loader));
+        if (data != null) {
+            return data;
+        }
+        expungeStaleEntries();
+        return DATA.computeIfAbsent(new WeakLoaderKey(loader, STALE_LOADERS), (l) -> new ClassLoaderData());
+    }
+
+    /**
+     * @return the data for the loader, or <code>null</code> if nothing has been stored for it yet
+     */
+    public static ClassLoaderData getIfPresent(ClassLoader loader) {
+        if (loader == null) {
+            return BOOTSTRAP_DATA;
+        }
+        return DATA.get(new LookupKey(loader));
+    }
+
+    private static void expungeStaleEntries() {
+        Reference<? extends ClassLoader> ref;
+        while ((ref = STALE_LOADERS.poll()) != null) {
+            DATA.remove(ref);
+        }
     }
 
     public Map<String, ClassData> getClassData() {
@@ -58,10 +95,22 @@ public class ClassLoaderData {
         return baseClassData;
     }
 
-    public Map<String, byte[]> getProxyDefinitions() {
+    BaseClassDataArena getBaseClassDataArena() {
+        return baseClassDataArena;
+    }
+
+    public Map<String, ClassDefinitionBytes> getProxyDefinitions() {
         return proxyDefinitions;
     }
 
+    public Map<String, ClassDefinitionBytes> getAddedClassDefinitions() {
+        return addedClassDefinitions;
+    }
+
+    Map<String, Long> getStructureFingerprints() {
+        return structureFingerprints;
+    }
+
     public <T> void putAttachment(AttachmentKey<T> attachmentKey, T value) {
         attachments.put(attachmentKey, value);
     }
@@ -71,9 +120,21 @@ public class ClassLoaderData {
         return (T) attachments.get(attachmentKey);
     }
 
+    /**
+     * Returns the attachment for the given key, atomically creating it if it does not exist
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getOrCreateAttachment(AttachmentKey<T> attachmentKey, Supplier<T> factory) {
+        return (T) attachments.computeIfAbsent(attachmentKey, (k) -> factory.get());
+    }
+
     @SuppressWarnings("unchecked")
     public static <T> Set<T> allAttachment(AttachmentKey<T> attachmentKey) {
         HashSet<T> ret = new HashSet<>();
+        T bootstrap = (T) BOOTSTRAP_DATA.attachments.get(attachmentKey);
+        if (bootstrap != null) {
+            ret.add(bootstrap);
+        }
         for (ClassLoaderData val : DATA.values()) {
             T data = (T) val.attachments.get(attachmentKey);
             if (data != null) {
@@ -82,4 +143,63 @@ public class ClassLoaderData {
         }
         return ret;
     }
+
+    /**
+     * Map key that compares class loaders by identity. Lookups use a {@link LookupKey}, so no reference
+     * object has to be created unless the loader is not already in the map.
+     */
+    private interface LoaderKey {
+        ClassLoader getLoader();
+    }
+
+    private static final class LookupKey implements LoaderKey {
+        private final ClassLoader loader;
+
+        private LookupKey(ClassLoader loader) {
+            this.loader = loader;
+        }
+
+        @Override
+        public ClassLoader getLoader() {
+            return loader;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof LoaderKey && ((LoaderKey) o).getLoader() == loader;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(loader);
+        }
+    }
+
+    private static final class WeakLoaderKey extends WeakReference<ClassLoader> implements LoaderKey {
+        private final int hash;
+
+        private WeakLoaderKey(ClassLoader loader, ReferenceQueue<ClassLoader> queue) {
+            super(loader, queue);
+            this.hash = System.identityHashCode(loader);
+        }
+
+        @Override
+        public ClassLoader getLoader() {
+            return get();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            final ClassLoader loader = get();
+            return loader != null && o instanceof LoaderKey && ((LoaderKey) o).getLoader() == loader;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
 }
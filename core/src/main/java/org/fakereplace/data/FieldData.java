@@ -24,7 +24,6 @@ import javassist.bytecode.FieldInfo;
 
 public class FieldData {
     private final int accessFlags;
-    private final boolean priv, pack, prot;
     private final String name;
     private final String type;
     private final MemberType memberType;
@@ -32,31 +31,30 @@ public class FieldData {
 
     public FieldData(FieldInfo info, MemberType memberType, String className, int modifiers) {
         this.accessFlags = modifiers;
-        this.pack = AccessFlag.isPackage(modifiers);
-        this.priv = AccessFlag.isPrivate(modifiers);
-        this.prot = AccessFlag.isProtected(modifiers);
-        this.type = info.getDescriptor();
-        this.name = info.getName();
-        this.className = className;
+        this.type = info.getDescriptor().intern();
+        this.name = info.getName().intern();
+        this.className = className.intern();
         this.memberType = memberType;
     }
 
     public FieldData(Field field) {
         this.accessFlags = field.getModifiers();
-        this.pack = AccessFlag.isPackage(accessFlags);
-        this.priv = AccessFlag.isPrivate(accessFlags);
-        this.prot = AccessFlag.isProtected(accessFlags);
-        this.type = field.getType().getName();
+        this.type = field.getType().getName().intern();
         this.memberType = MemberType.NORMAL;
-        this.className = field.getDeclaringClass().getName();
-        this.name = field.getName();
+        this.className = field.getDeclaringClass().getName().intern();
+        this.name = field.getName().intern();
+    }
+
+    FieldData(String name, String type, String className, MemberType memberType, int modifiers) {
+        this.accessFlags = modifiers;
+        this.type = type.intern();
+        this.name = name.intern();
+        this.className = className.intern();
+        this.memberType = memberType;
     }
 
     public FieldData(FieldData other, MemberType type) {
         this.accessFlags = other.accessFlags;
-        this.pack = other.pack;
-        this.priv = other.priv;
-        this.prot = other.prot;
         this.type = other.type;
         this.name = other.name;
         this.className = other.className;
@@ -86,7 +84,7 @@ public class FieldData {
 
     @Override
     public int hashCode() {
-        return (className + name).hashCode();
+        return 31 * className.hashCode() + name.hashCode();
     }
 
     public String getName() {
@@ -115,15 +113,15 @@ public class FieldData {
     }
 
     public boolean isPriv() {
-        return priv;
+        return AccessFlag.isPrivate(accessFlags);
     }
 
     public boolean isPack() {
-        return pack;
+        return AccessFlag.isPackage(accessFlags);
     }
 
     public boolean isProt() {
-        return prot;
+        return AccessFlag.isProtected(accessFlags);
     }
 
 }
@@ -17,9 +17,11 @@
 
 package org.fakereplace.data;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Set;
-import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -27,30 +29,97 @@ import java.util.concurrent.ConcurrentMap;
 /**
  * This class is responsible for tracking instances of certain classes as they
  * are loaded
+ * <p>
+ * Calls to {@link #add(String, Object)} are injected into the constructors of the tracked classes, so adding an
+ * instance does not take any locks, and never calls the <code>hashCode</code> or <code>equals</code> methods of
+ * the instance, which may not be fully constructed at that point.
  *
  * @author stuart
  */
 public class InstanceTracker {
 
-    private static final ConcurrentMap<String, Set<Object>> data = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, TrackedInstances> data = new ConcurrentHashMap<>();
 
     public static void add(String type, Object object) {
-        Set<Object> set = data.get(type);
-        if(set == null) {
-            set = Collections.newSetFromMap(Collections.synchronizedMap(new WeakHashMap<>()));
-            Set<Object> existing = data.putIfAbsent(type, set);
+        TrackedInstances instances = data.get(type);
+        if(instances == null) {
+            instances = new TrackedInstances();
+            TrackedInstances existing = data.putIfAbsent(type, instances);
             if(existing != null) {
-                set = existing;
+                instances = existing;
             }
         }
-        set.add(object);
+        instances.add(object);
     }
 
+    /**
+     * Returns a snapshot of the live instances of the given type
+     */
     public static Set<?> get(String type) {
-        final Set<Object> result =  data.get(type);
-        if(result != null) {
-            return result;
+        final TrackedInstances instances = data.get(type);
+        if(instances != null) {
+            return instances.snapshot();
         }
         return Collections.emptySet();
     }
+
+    private static final class TrackedInstances {
+
+        private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+        private final Set<InstanceReference> references = ConcurrentHashMap.newKeySet();
+
+        void add(Object object) {
+            expungeStaleEntries();
+            references.add(new InstanceReference(object, queue));
+        }
+
+        Set<Object> snapshot() {
+            expungeStaleEntries();
+            final Set<Object> result = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (InstanceReference reference : references) {
+                final Object instance = reference.get();
+                if (instance != null) {
+                    result.add(instance);
+                }
+            }
+            return Collections.unmodifiableSet(result);
+        }
+
+        private void expungeStaleEntries() {
+            Object stale;
+            while ((stale = queue.poll()) != null) {
+                references.remove(stale);
+            }
+        }
+    }
+
+    /**
+     * A weak reference that compares its referent by identity
+     */
+    private static final class InstanceReference extends WeakReference<Object> {
+
+        private final int hash;
+
+        private InstanceReference(Object referent, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof InstanceReference)) {
+                return false;
+            }
+            final Object referent = get();
+            return referent != null && referent == ((InstanceReference) o).get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
 }
@@ -36,11 +36,6 @@ public class MethodData {
      * contains the argument portion of the descriptor minus the return type
      */
     private final String argumentDescriptor;
-    /**
-     * the return type of the method
-     * final
-     */
-    private final String returnTypeDescriptor;
 
     private final MemberType type;
     private final int accessFlags;
@@ -56,28 +51,28 @@ public class MethodData {
 
     private final boolean finalMethod;
 
+    private final int hash;
+
     public MethodData(String name, String descriptor, String className, MemberType type, int accessFlags, boolean finalMethod) {
-        this.methodName = name;
-        this.descriptor = descriptor;
-        this.returnTypeDescriptor = DescriptorUtils.getReturnType(descriptor);
-        this.argumentDescriptor = DescriptorUtils.getArgumentString(descriptor);
-        this.className = className;
-        this.type = type;
-        this.accessFlags = accessFlags;
-        this.methodNo = 0;
-        this.finalMethod = finalMethod;
+        this(name, descriptor, className, type, accessFlags, 0, finalMethod);
     }
 
     public MethodData(String name, String descriptor, String className, MemberType type, int accessFlags, int methodNo) {
-        this.methodName = name;
-        this.descriptor = descriptor;
-        this.returnTypeDescriptor = DescriptorUtils.getReturnType(descriptor);
-        this.argumentDescriptor = DescriptorUtils.getArgumentString(descriptor);
-        this.className = className;
+        this(name, descriptor, className, type, accessFlags, methodNo, false);
+    }
+
+    private MethodData(String name, String descriptor, String className, MemberType type, int accessFlags, int methodNo, boolean finalMethod) {
+        // names and descriptors are interned, as they are retained for every method of every class
+        // and most of them are shared between classes
+        this.methodName = name.intern();
+        this.descriptor = descriptor.intern();
+        this.argumentDescriptor = DescriptorUtils.getArgumentString(descriptor).intern();
+        this.className = className.intern();
         this.type = type;
         this.accessFlags = accessFlags;
         this.methodNo = methodNo;
-        this.finalMethod = false;
+        this.finalMethod = finalMethod;
+        this.hash = 31 * (31 * this.className.hashCode() + methodName.hashCode()) + this.descriptor.hashCode();
     }
 
     /**
@@ -103,7 +98,7 @@ public class MethodData {
 
     @Override
     public int hashCode() {
-        return (className + methodName + descriptor).hashCode();
+        return hash;
     }
 
     public String getClassName() {
@@ -168,7 +163,7 @@ public class MethodData {
     }
 
     public String getReturnTypeDescriptor() {
-        return returnTypeDescriptor;
+        return DescriptorUtils.getReturnType(descriptor);
     }
 
     public boolean isFinalMethod() {
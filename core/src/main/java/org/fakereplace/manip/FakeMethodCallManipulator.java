@@ -17,7 +17,6 @@
 
 package org.fakereplace.manip;
 
-import java.lang.invoke.LambdaMetafactory;
 import java.lang.reflect.Modifier;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -51,6 +50,8 @@ public class FakeMethodCallManipulator implements ClassManipulator {
 
     private final ManipulationDataStore<Data> data = new ManipulationDataStore<>();
 
+    private final LambdaBootstrapIndex lambdaIndex = new LambdaBootstrapIndex();
+
     private final Logger log = Logger.getLogger(FakeMethodCallManipulator.class);
 
     public void clearRewrites(String className, ClassLoader loader) {
@@ -61,7 +62,15 @@ public class FakeMethodCallManipulator implements ClassManipulator {
         data.add(className, new Data(className, methodName, methodDesc, type, classLoader, methodNumber, proxyName));
     }
 
+    /**
+     * Returns the loaded classes that have lambdas implemented by the given method
+     */
+    Set<Class<?>> getLambdaHosts(String className, String methodName, String methodDesc, ClassLoader loader) {
+        return lambdaIndex.getHosts(className, methodName, methodDesc, loader);
+    }
+
     public boolean transformClass(ClassFile file, ClassLoader loader, boolean modifiableClass, final Set<MethodInfo> modifiedMethods) {
+        lambdaIndex.record(file, loader);
         if (!Fakereplace.isRetransformationStarted()) {
             return false;
         }
@@ -224,42 +233,21 @@ public class FakeMethodCallManipulator implements ClassManipulator {
             boolean replaceBootstrap = false;
             BootstrapMethodsAttribute.BootstrapMethod[] replacement = boot.getMethods();
             for (BootstrapMethodsAttribute.BootstrapMethod method : replacement) {
-
-                //initial support for lambda replacement
-                //first we look for all invocations on LambdaMetafactory
-                int kind = pool.getMethodHandleKind(method.methodRef);
-                if (kind == ConstPool.REF_invokeStatic) {
-                    int nameAndType = pool.getMethodHandleIndex(method.methodRef);
-                    String className = pool.getMethodrefClassName(nameAndType);
-                    String methodName = pool.getMethodrefName(nameAndType);
-                    if (className.equals(LambdaMetafactory.class.getName())) {
-                        if (methodName.equals("metafactory")) {
-                            //we have a lambda instance
-                            //does it reference a new method
-                            int methodHandleArg = method.arguments[1];
-                            kind = pool.getMethodHandleKind(methodHandleArg);
-                            if (kind == ConstPool.REF_invokeStatic || kind == ConstPool.REF_invokeVirtual || kind == ConstPool.REF_invokeSpecial) {
-                                int methodRefArg = pool.getMethodHandleIndex(methodHandleArg);
-                                if (knownFakeMethodCallLocations.containsKey(methodRefArg)) {
-                                    //the lambda references a new method
-
-                                    replaceBootstrap = true;
-                                    Data target = knownFakeMethodCallLocations.get(methodRefArg);
-                                    String type = pool.getMethodrefType(methodRefArg);
-                                    String name = pool.getMethodrefName(methodRefArg);
-                                    if (kind != ConstPool.REF_invokeStatic) {
-                                        type = "(" + DescriptorUtils.extToInt(file.getName()) + type.substring(1);
-                                    }
-
-                                    int newMethodRef = pool.addMethodrefInfo(pool.addClassInfo(target.getProxyName()), name, type);
-                                    int newMethodHandle = pool.addMethodHandleInfo(ConstPool.REF_invokeStatic, newMethodRef);
-                                    method.arguments[1] = newMethodHandle;
-                                }
-                            }
-
-
-                        }
+                //we look for lambdas created by the LambdaMetafactory that reference a new method
+                int methodRefArg = LambdaBootstrapIndex.implementationMethodRef(pool, method);
+                if (methodRefArg != -1 && knownFakeMethodCallLocations.containsKey(methodRefArg)) {
+                    //the lambda references a new method
+                    replaceBootstrap = true;
+                    Data target = knownFakeMethodCallLocations.get(methodRefArg);
+                    String type = LambdaBootstrapIndex.memberType(pool, methodRefArg);
+                    String name = LambdaBootstrapIndex.memberName(pool, methodRefArg);
+                    if (target.getType() != Type.STATIC) {
+                        type = "(" + DescriptorUtils.extToInt(target.getClassName()) + type.substring(1);
                     }
+
+                    int newMethodRef = pool.addMethodrefInfo(pool.addClassInfo(target.getProxyName()), name, type);
+                    int newMethodHandle = pool.addMethodHandleInfo(ConstPool.REF_invokeStatic, newMethodRef);
+                    method.arguments[1] = newMethodHandle;
                 }
             }
             if (replaceBootstrap) {
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.manip;
+
+import java.lang.invoke.LambdaMetafactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.fakereplace.core.BuiltinClassData;
+import org.fakereplace.core.Fakereplace;
+import javassist.bytecode.AttributeInfo;
+import javassist.bytecode.BootstrapMethodsAttribute;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.ConstPool;
+
+/**
+ * Index from the methods that lambdas and method references are implemented by, to the classes that contain them.
+ * <p>
+ * The implementation method of a lambda is linked the first time the lambda is evaluated. If a method is added to a
+ * class after a lambda that refers to it has been transformed, the bootstrap method of the lambda still points to a
+ * method that does not really exist. This index means that only the classes with lambdas that refer to the added
+ * method have to be retransformed. Only lambdas that refer to methods on replaceable classes are recorded.
+ *
+ * @author Stuart Douglas
+ */
+final class LambdaBootstrapIndex {
+
+    private static final String LAMBDA_METAFACTORY = LambdaMetafactory.class.getName();
+
+    /**
+     * the index of the implementation method handle in the static arguments of the metafactory bootstrap methods
+     */
+    private static final int IMPLEMENTATION_ARGUMENT = 1;
+
+    private final Map<ClassLoader, LoaderIndex> loaders = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Records the lambdas in a class, replacing anything that was recorded for a previous version of it
+     */
+    void record(ClassFile file, ClassLoader loader) {
+        if (loader == null) {
+            return;
+        }
+        final AttributeInfo attribute = file.getAttribute(BootstrapMethodsAttribute.tag);
+        LoaderIndex index = null;
+        Set<String> targets = Collections.emptySet();
+        if (attribute instanceof BootstrapMethodsAttribute) {
+            final ConstPool pool = file.getConstPool();
+            for (BootstrapMethodsAttribute.BootstrapMethod method : ((BootstrapMethodsAttribute) attribute).getMethods()) {
+                final int implementation = implementationMethodRef(pool, method);
+                if (implementation == -1) {
+                    continue;
+                }
+                final String className = memberClassName(pool, implementation);
+                if (className.equals(file.getName()) || BuiltinClassData.skipInstrumentation(className)) {
+                    continue;
+                }
+                if (index == null) {
+                    index = loaders.computeIfAbsent(loader, l -> new LoaderIndex());
+                }
+                if (!index.isReplaceable(className, loader)) {
+                    continue;
+                }
+                if (targets.isEmpty()) {
+                    targets = new HashSet<>();
+                }
+                targets.add(key(className, memberName(pool, implementation), memberType(pool, implementation)));
+            }
+        }
+        if (index == null) {
+            index = loaders.get(loader);
+            if (index == null) {
+                return;
+            }
+        }
+        index.update(file.getName(), targets);
+    }
+
+    /**
+     * Returns the loaded classes with lambdas that are implemented by the given method
+     */
+    Set<Class<?>> getHosts(String className, String methodName, String methodDesc, ClassLoader loader) {
+        final Map<ClassLoader, LoaderIndex> candidates;
+        synchronized (loaders) {
+            candidates = new HashMap<>(loaders);
+        }
+        final String key = key(className, methodName, methodDesc);
+        Set<Class<?>> result = Collections.emptySet();
+        for (Map.Entry<ClassLoader, LoaderIndex> entry : candidates.entrySet()) {
+            if (!ManipulationDataStore.includeClassLoader(entry.getKey(), loader)) {
+                continue;
+            }
+            final Set<String> hosts = entry.getValue().hostsByTarget.get(key);
+            if (hosts == null) {
+                continue;
+            }
+            for (String host : hosts) {
+                try {
+                    final Class<?> hostClass = Class.forName(host, false, entry.getKey());
+                    if (result.isEmpty()) {
+                        result = new HashSet<>();
+                    }
+                    result.add(hostClass);
+                } catch (ClassNotFoundException | LinkageError e) {
+                    // the class was transformed but never defined
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the constant pool index of the method that implements the lambda created by this bootstrap method, or
+     * -1 if it is not a lambda or does not refer to a method.
+     */
+    static int implementationMethodRef(ConstPool pool, BootstrapMethodsAttribute.BootstrapMethod method) {
+        if (pool.getMethodHandleKind(method.methodRef) != ConstPool.REF_invokeStatic) {
+            return -1;
+        }
+        final int bootstrap = pool.getMethodHandleIndex(method.methodRef);
+        if (!memberClassName(pool, bootstrap).equals(LAMBDA_METAFACTORY)) {
+            return -1;
+        }
+        final String bootstrapName = memberName(pool, bootstrap);
+        if (!bootstrapName.equals("metafactory") && !bootstrapName.equals("altMetafactory")) {
+            return -1;
+        }
+        if (method.arguments.length <= IMPLEMENTATION_ARGUMENT) {
+            return -1;
+        }
+        final int handle = method.arguments[IMPLEMENTATION_ARGUMENT];
+        final int kind = pool.getMethodHandleKind(handle);
+        if (kind != ConstPool.REF_invokeStatic && kind != ConstPool.REF_invokeVirtual && kind != ConstPool.REF_invokeSpecial && kind != ConstPool.REF_invokeInterface) {
+            return -1;
+        }
+        return pool.getMethodHandleIndex(handle);
+    }
+
+    static String memberClassName(ConstPool pool, int index) {
+        return pool.getTag(index) == ConstPool.CONST_InterfaceMethodref ? pool.getInterfaceMethodrefClassName(index) : pool.getMethodrefClassName(index);
+    }
+
+    static String memberName(ConstPool pool, int index) {
+        return pool.getTag(index) == ConstPool.CONST_InterfaceMethodref ? pool.getInterfaceMethodrefName(index) : pool.getMethodrefName(index);
+    }
+
+    static String memberType(ConstPool pool, int index) {
+        return pool.getTag(index) == ConstPool.CONST_InterfaceMethodref ? pool.getInterfaceMethodrefType(index) : pool.getMethodrefType(index);
+    }
+
+    private static String key(String className, String methodName, String methodDesc) {
+        return className + '.' + methodName + methodDesc;
+    }
+
+    private static final class LoaderIndex {
+
+        private final Map<String, Set<String>> hostsByTarget = new ConcurrentHashMap<>();
+
+        private final Map<String, Set<String>> targetsByHost = new ConcurrentHashMap<>();
+
+        /**
+         * whether the classes that lambdas refer to are replaceable. Working this out can mean a resource lookup,
+         * and the same classes are referred to by lambdas in a lot of different classes.
+         */
+        private final Map<String, Boolean> replaceable = new ConcurrentHashMap<>();
+
+        private boolean isReplaceable(String className, ClassLoader loader) {
+            Boolean result = replaceable.get(className);
+            if (result == null) {
+                result = Fakereplace.isClassReplaceable(className, loader);
+                replaceable.put(className, result);
+            }
+            return result;
+        }
+
+        private synchronized void update(String host, Set<String> targets) {
+            final Set<String> previous = targets.isEmpty() ? targetsByHost.remove(host) : targetsByHost.put(host, targets);
+            if (previous != null) {
+                for (String target : previous) {
+                    final Set<String> hosts = hostsByTarget.get(target);
+                    if (hosts != null) {
+                        hosts.remove(host);
+                        if (hosts.isEmpty()) {
+                            hostsByTarget.remove(target);
+                        }
+                    }
+                }
+            }
+            for (String target : targets) {
+                hostsByTarget.computeIfAbsent(target, t -> ConcurrentHashMap.newKeySet()).add(host);
+            }
+        }
+    }
+}
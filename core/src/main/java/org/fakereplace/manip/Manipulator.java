@@ -20,6 +20,7 @@ package org.fakereplace.manip;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 
+import org.fakereplace.metrics.Metrics;
 import javassist.bytecode.ClassFile;
 import javassist.bytecode.MethodInfo;
 
@@ -31,6 +32,7 @@ import javassist.bytecode.MethodInfo;
 public class Manipulator {
 
     private final VirtualToStaticManipulator virtualToStaticManipulator = new VirtualToStaticManipulator();
+    private final VirtualToStaticManipulator reflectionCallManipulator = new VirtualToStaticManipulator();
     private final FieldManipulator instanceFieldManapulator = new FieldManipulator();
     private final ConstructorInvocationManipulator constructorInvocationManipulator = new ConstructorInvocationManipulator();
     private final ReflectionConstructorAccessManipulator reflectionConstructorAccessManipulator = new ReflectionConstructorAccessManipulator();
@@ -42,8 +44,17 @@ public class Manipulator {
 
     private final Set<ClassManipulator> manipulators = new CopyOnWriteArraySet<>();
 
+    /**
+     * manipulators that rewrite reflection call sites that only matter once a class has been replaced, these
+     * can be deferred for non replaceable classes
+     */
+    private final Set<ClassManipulator> reflectionManipulators = new CopyOnWriteArraySet<>();
+
+    private volatile boolean reflectionRewritingDeferred;
+
     public Manipulator() {
         manipulators.add(virtualToStaticManipulator);
+        manipulators.add(reflectionCallManipulator);
         manipulators.add(instanceFieldManapulator);
         manipulators.add(constructorInvocationManipulator);
         manipulators.add(subclassVirtualCallManilulator);
@@ -52,6 +63,11 @@ public class Manipulator {
         manipulators.add(reflectionMethodAccessManipulator);
         manipulators.add(reflectionConstructorAccessManipulator);
         manipulators.add(fakeMethodCallManipulator);
+
+        reflectionManipulators.add(reflectionCallManipulator);
+        reflectionManipulators.add(reflectionFieldAccessManipulator);
+        reflectionManipulators.add(reflectionMethodAccessManipulator);
+        reflectionManipulators.add(reflectionConstructorAccessManipulator);
     }
 
     public void removeRewrites(String className, ClassLoader classLoader) {
@@ -81,6 +97,16 @@ public class Manipulator {
         virtualToStaticManipulator.replaceVirtualMethodInvokationWithStatic(oldClass, newClass, methodName, methodDesc, newStaticMethodDesc, classLoader);
     }
 
+    /**
+     * Replaces a call to a reflection method with a static invokation. This is only used for rewrites that make
+     * no difference until a class has been replaced. Unlike
+     * {@link #replaceVirtualMethodInvokationWithStatic(String, String, String, String, String, ClassLoader)}
+     * these rewrites are not applied to non replaceable classes while reflection rewriting is deferred.
+     */
+    public void replaceDeferrableInvokationWithStatic(String oldClass, String newClass, String methodName, String methodDesc, String newStaticMethodDesc, ClassLoader classLoader) {
+        reflectionCallManipulator.replaceVirtualMethodInvokationWithStatic(oldClass, newClass, methodName, methodDesc, newStaticMethodDesc, classLoader);
+    }
+
     public void replaceVirtualMethodInvokationWithLocal(String oldClass, String methodName, String newMethodName, String methodDesc, String newStaticMethodDesc, ClassLoader classLoader) {
         virtualToStaticManipulator.replaceVirtualMethodInvokationWithLocal(oldClass, methodName, newMethodName, methodDesc, newStaticMethodDesc, classLoader);
     }
@@ -89,15 +115,29 @@ public class Manipulator {
         fakeMethodCallManipulator.addFakeMethodCall(className, methodName, methodDesc, type, classLoader, methodNumber, proxyName);
     }
 
+    /**
+     * Returns the loaded classes that have lambdas or method references implemented by the given method. If the
+     * method has just been added these classes need to be retransformed.
+     */
+    public Set<Class<?>> getLambdaHosts(String className, String methodName, String methodDesc, ClassLoader classLoader) {
+        return fakeMethodCallManipulator.getLambdaHosts(className, methodName, methodDesc, classLoader);
+    }
+
     public boolean transformClass(ClassFile file, ClassLoader classLoader, boolean modifiable, Set<MethodInfo> modifiedMethods) {
         try {
             boolean modified = false;
 
             // first we are going to transform virtual method calls to static ones
+            final boolean skipReflection = !modifiable && reflectionRewritingDeferred;
             for (ClassManipulator m : manipulators) {
+                if (skipReflection && reflectionManipulators.contains(m)) {
+                    continue;
+                }
+                final long start = Metrics.start();
                 if (m.transformClass(file, classLoader, modifiable, modifiedMethods)) {
                     modified = true;
                 }
+                Metrics.record(m.getClass().getName(), start);
             }
             return modified;
         } catch (RuntimeException e) {
@@ -106,4 +146,24 @@ public class Manipulator {
         }
     }
 
+    /**
+     * Stops reflection call sites from being rewritten in non replaceable classes, until
+     * {@link #enableReflectionRewriting()} is called. Replaceable classes are always rewritten.
+     */
+    public void deferReflectionRewriting() {
+        reflectionRewritingDeferred = true;
+    }
+
+    /**
+     * Starts rewriting reflection call sites in all classes. Classes that have already been loaded
+     * must be retransformed to pick up the rewrites.
+     */
+    public void enableReflectionRewriting() {
+        reflectionRewritingDeferred = false;
+    }
+
+    public boolean isReflectionRewritingDeferred() {
+        return reflectionRewritingDeferred;
+    }
+
 }
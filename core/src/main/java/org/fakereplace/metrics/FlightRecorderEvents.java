@@ -0,0 +1,291 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.fakereplace.logging.Logger;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.DuplicateMemberException;
+import javassist.bytecode.FieldInfo;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import javassist.bytecode.annotation.Annotation;
+import javassist.bytecode.annotation.ArrayMemberValue;
+import javassist.bytecode.annotation.MemberValue;
+import javassist.bytecode.annotation.StringMemberValue;
+
+/**
+ * Java Flight Recorder events for the work done by the agent.
+ * <p>
+ * Fakereplace still runs on JVMs that do not have the <code>jdk.jfr</code> API, so the event classes can't be
+ * compiled in. Instead they are generated when the events are enabled, and implement {@link RecordedEvent} so they
+ * can be driven without reflection. Events are emitted from inside the class file transformer, where a reflective or
+ * method handle call can end up loading a class and re-entering the transformer. If the JVM does not support JFR
+ * the events just stay disabled.
+ * <p>
+ * Events are started with {@link #begin(Type)}, which returns <code>null</code> if the events are disabled, and
+ * finished with {@link #commit(Object, Object...)}, which takes the field values in the order they are declared by
+ * the event type.
+ *
+ * @author Stuart Douglas
+ */
+public final class FlightRecorderEvents {
+
+    private static final Logger log = Logger.getLogger(FlightRecorderEvents.class);
+
+    private static final String EVENT_CLASS = "jdk.jfr.Event";
+
+    private static final String RECORDED_EVENT_CLASS = RecordedEvent.class.getName();
+
+    private static final String CATEGORY = "Fakereplace";
+
+    public enum Type {
+        CLASS_TRANSFORM("ClassTransformEvent", "org.fakereplace.ClassTransform", "Class Transform",
+                new Field("className", String.class, "Class Name"),
+                new Field("classLoader", String.class, "Class Loader"),
+                new Field("transformers", String.class, "Transformers Applied"),
+                new Field("bytesIn", int.class, "Bytes In"),
+                new Field("bytesOut", int.class, "Bytes Out")),
+        REDEFINITION("RedefinitionEvent", "org.fakereplace.Redefinition", "Redefinition",
+                new Field("classCount", int.class, "Redefined Classes"),
+                new Field("addedClassCount", int.class, "Added Classes"),
+                new Field("addedMembers", int.class, "Added Members")),
+        CLASS_CHANGE_LISTENER("ClassChangeListenerEvent", "org.fakereplace.ClassChangeListener", "Class Change Listener",
+                new Field("listener", String.class, "Listener"),
+                new Field("changedClassCount", int.class, "Changed Classes"),
+                new Field("addedClassCount", int.class, "Added Classes"));
+
+        private final String className;
+        private final String eventName;
+        private final String label;
+        private final Field[] fields;
+        private volatile RecordedEvent prototype;
+
+        Type(String className, String eventName, String label, Field... fields) {
+            this.className = "org.fakereplace.metrics.jfr." + className;
+            this.eventName = eventName;
+            this.label = label;
+            this.fields = fields;
+        }
+    }
+
+    private static final class Field {
+        private final String name;
+        private final Class<?> type;
+        private final String label;
+
+        private Field(String name, Class<?> type, String label) {
+            this.name = name;
+            this.type = type;
+            this.label = label;
+        }
+    }
+
+    /**
+     * Implemented by the generated event classes. Apart from {@link #newEvent()} and {@link #setValues(Object[])}
+     * these are the methods of <code>jdk.jfr.Event</code>.
+     */
+    public interface RecordedEvent {
+
+        RecordedEvent newEvent();
+
+        void setValues(Object[] values);
+
+        void begin();
+
+        void end();
+
+        boolean shouldCommit();
+
+        void commit();
+    }
+
+    private static volatile boolean enabled;
+
+    private FlightRecorderEvents() {
+    }
+
+    /**
+     * Generates and registers the event classes, if the JVM supports JFR
+     */
+    public static synchronized void enable() {
+        if (enabled) {
+            return;
+        }
+        try {
+            Class.forName(EVENT_CLASS);
+        } catch (ClassNotFoundException e) {
+            log.info("Flight recorder events are not supported by this JVM");
+            return;
+        }
+        try {
+            // the generated classes need to see both jdk.jfr.Event and RecordedEvent
+            final EventClassLoader loader = new EventClassLoader(FlightRecorderEvents.class.getClassLoader());
+            for (Type type : Type.values()) {
+                final Class<?> generated = loader.define(type.className, generateEventClass(type));
+                type.prototype = (RecordedEvent) generated.getDeclaredConstructor().newInstance();
+            }
+            enabled = true;
+        } catch (Exception | LinkageError e) {
+            log.error("Failed to create flight recorder events", e);
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts an event
+     *
+     * @return the event, or <code>null</code> if events are disabled
+     */
+    public static Object begin(Type type) {
+        if (!enabled) {
+            return null;
+        }
+        try {
+            final RecordedEvent event = type.prototype.newEvent();
+            event.begin();
+            return event;
+        } catch (RuntimeException | LinkageError e) {
+            failed(e);
+            return null;
+        }
+    }
+
+    /**
+     * Finishes an event that was started with {@link #begin(Type)}, and commits it if it is enabled in the current
+     * recording
+     *
+     * @param values the values of the event fields, in declaration order
+     */
+    public static void commit(Object event, Object... values) {
+        if (event == null) {
+            return;
+        }
+        try {
+            final RecordedEvent recorded = (RecordedEvent) event;
+            recorded.end();
+            if (recorded.shouldCommit()) {
+                recorded.setValues(values);
+                recorded.commit();
+            }
+        } catch (RuntimeException | LinkageError e) {
+            failed(e);
+        }
+    }
+
+    private static void failed(Throwable e) {
+        enabled = false;
+        log.error("Disabling flight recorder events after failure", e);
+    }
+
+    private static byte[] generateEventClass(Type type) throws DuplicateMemberException, IOException {
+        final ClassFile file = new ClassFile(false, type.className, EVENT_CLASS);
+        file.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.SUPER);
+        file.setInterfaces(new String[]{RECORDED_EVENT_CLASS});
+        final ConstPool pool = file.getConstPool();
+
+        final AnnotationsAttribute classAnnotations = new AnnotationsAttribute(pool, AnnotationsAttribute.visibleTag);
+        classAnnotations.addAnnotation(annotation(pool, "jdk.jfr.Name", new StringMemberValue(type.eventName, pool)));
+        classAnnotations.addAnnotation(annotation(pool, "jdk.jfr.Label", new StringMemberValue(type.label, pool)));
+        final ArrayMemberValue category = new ArrayMemberValue(new StringMemberValue(pool), pool);
+        category.setValue(new MemberValue[]{new StringMemberValue(CATEGORY, pool)});
+        classAnnotations.addAnnotation(annotation(pool, "jdk.jfr.Category", category));
+        file.addAttribute(classAnnotations);
+
+        for (Field field : type.fields) {
+            final FieldInfo info = new FieldInfo(pool, field.name, field.type == int.class ? "I" : "Ljava/lang/String;");
+            info.setAccessFlags(AccessFlag.PUBLIC);
+            final AnnotationsAttribute fieldAnnotations = new AnnotationsAttribute(pool, AnnotationsAttribute.visibleTag);
+            fieldAnnotations.addAnnotation(annotation(pool, "jdk.jfr.Label", new StringMemberValue(field.label, pool)));
+            info.addAttribute(fieldAnnotations);
+            file.addField(info);
+        }
+
+        final MethodInfo constructor = new MethodInfo(pool, "<init>", "()V");
+        constructor.setAccessFlags(AccessFlag.PUBLIC);
+        final Bytecode code = new Bytecode(pool, 1, 1);
+        code.addAload(0);
+        code.addInvokespecial(EVENT_CLASS, "<init>", "()V");
+        code.addReturn(null);
+        constructor.setCodeAttribute(code.toCodeAttribute());
+        file.addMethod(constructor);
+
+        final MethodInfo newEvent = new MethodInfo(pool, "newEvent", "()L" + RECORDED_EVENT_CLASS.replace('.', '/') + ";");
+        newEvent.setAccessFlags(AccessFlag.PUBLIC);
+        final Bytecode newEventCode = new Bytecode(pool, 2, 1);
+        newEventCode.addNew(type.className);
+        newEventCode.add(Opcode.DUP);
+        newEventCode.addInvokespecial(type.className, "<init>", "()V");
+        newEventCode.add(Opcode.ARETURN);
+        newEvent.setCodeAttribute(newEventCode.toCodeAttribute());
+        file.addMethod(newEvent);
+
+        final MethodInfo setValues = new MethodInfo(pool, "setValues", "([Ljava/lang/Object;)V");
+        setValues.setAccessFlags(AccessFlag.PUBLIC);
+        final Bytecode setValuesCode = new Bytecode(pool, 3, 2);
+        for (int i = 0; i < type.fields.length; ++i) {
+            final Field field = type.fields[i];
+            setValuesCode.addAload(0);
+            setValuesCode.addAload(1);
+            setValuesCode.addIconst(i);
+            setValuesCode.add(Opcode.AALOAD);
+            if (field.type == int.class) {
+                setValuesCode.addCheckcast("java.lang.Integer");
+                setValuesCode.addInvokevirtual("java.lang.Integer", "intValue", "()I");
+                setValuesCode.addPutfield(type.className, field.name, "I");
+            } else {
+                setValuesCode.addCheckcast("java.lang.String");
+                setValuesCode.addPutfield(type.className, field.name, "Ljava/lang/String;");
+            }
+        }
+        setValuesCode.addReturn(null);
+        setValues.setCodeAttribute(setValuesCode.toCodeAttribute());
+        file.addMethod(setValues);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        file.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static Annotation annotation(ConstPool pool, String type, MemberValue value) {
+        final Annotation annotation = new Annotation(type, pool);
+        annotation.addMemberValue("value", value);
+        return annotation;
+    }
+
+    private static final class EventClassLoader extends ClassLoader {
+
+        private EventClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        private Class<?> define(String name, byte[] data) {
+            return defineClass(name, data, 0, data.length);
+        }
+    }
+}
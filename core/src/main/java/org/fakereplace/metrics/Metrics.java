@@ -0,0 +1,211 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+import org.fakereplace.logging.Logger;
+
+/**
+ * Counters and timings for the work done by the agent. Nothing is recorded unless metrics have been enabled with
+ * the <code>metrics</code> agent option, in which case every call site pays for a {@link System#nanoTime()} call
+ * and a few uncontended adds.
+ * <p>
+ * Timings are recorded by calling {@link #start()} before a stage and {@link #record(String, long)} after it.
+ *
+ * @author Stuart Douglas
+ */
+public final class Metrics implements MetricsMXBean {
+
+    public static final String TRANSFORM = "transform";
+    public static final String STACK_MAP_REBUILD = "stack-map-rebuild";
+    public static final String REDEFINE = "redefine";
+    public static final String NOTIFICATION = "notification";
+
+    public enum Counter {
+        CLASSES_SEEN,
+        CLASSES_SKIPPED,
+        CLASSES_MODIFIED,
+        CLASSES_RETRANSFORMED,
+        CLASSES_REDEFINED;
+
+        private final LongAdder value = new LongAdder();
+    }
+
+    /**
+     * registering the MBean initializes JMX, and with it java.util.logging, which must not happen while the agent
+     * is starting, so it is delayed until the application should have configured logging
+     */
+    private static final long REGISTRATION_DELAY = Long.getLong("org.fakereplace.metrics-registration-delay", 10000);
+
+    private static final Logger log = Logger.getLogger(Metrics.class);
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    private static volatile boolean enabled;
+
+    private final Map<String, Stage> stages = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Enables metrics, and schedules the registration of the MBean. Calling this again once metrics are enabled
+     * does nothing.
+     *
+     * @param logInterval the interval in seconds at which a summary is logged, or 0 to never log it
+     */
+    public static synchronized void enable(long logInterval) {
+        if (enabled) {
+            return;
+        }
+        enabled = true;
+        final Timer timer = new Timer("Fakereplace metrics", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName("org.fakereplace:type=Metrics"));
+                } catch (Exception e) {
+                    log.error("Failed to register metrics MBean", e);
+                }
+            }
+        }, REGISTRATION_DELAY);
+        if (logInterval > 0) {
+            timer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    log.info(INSTANCE.getSummary());
+                }
+            }, logInterval * 1000, logInterval * 1000);
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the start time of a stage, or 0 if metrics are disabled
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a stage that was started with {@link #start()}
+     */
+    public static void record(String stage, long start) {
+        if (start == 0) {
+            return;
+        }
+        final long time = System.nanoTime() - start;
+        Stage s = INSTANCE.stages.get(stage);
+        if (s == null) {
+            s = INSTANCE.stages.computeIfAbsent(stage, k -> new Stage());
+        }
+        s.count.increment();
+        s.total.add(time);
+        s.max.accumulate(time);
+    }
+
+    public static void increment(Counter counter) {
+        if (enabled) {
+            counter.value.increment();
+        }
+    }
+
+    public static void add(Counter counter, long amount) {
+        if (enabled) {
+            counter.value.add(amount);
+        }
+    }
+
+    public static Metrics instance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public long getClassesSeen() {
+        return Counter.CLASSES_SEEN.value.sum();
+    }
+
+    @Override
+    public long getClassesSkipped() {
+        return Counter.CLASSES_SKIPPED.value.sum();
+    }
+
+    @Override
+    public long getClassesModified() {
+        return Counter.CLASSES_MODIFIED.value.sum();
+    }
+
+    @Override
+    public long getClassesRetransformed() {
+        return Counter.CLASSES_RETRANSFORMED.value.sum();
+    }
+
+    @Override
+    public long getClassesRedefined() {
+        return Counter.CLASSES_REDEFINED.value.sum();
+    }
+
+    @Override
+    public Map<String, StageTiming> getTimings() {
+        final Map<String, StageTiming> result = new TreeMap<>();
+        for (Map.Entry<String, Stage> entry : stages.entrySet()) {
+            final Stage stage = entry.getValue();
+            result.put(entry.getKey(), new StageTiming(stage.count.sum(), stage.total.sum(), stage.max.get()));
+        }
+        return result;
+    }
+
+    @Override
+    public String getSummary() {
+        final StringBuilder summary = new StringBuilder("Fakereplace metrics:");
+        for (Counter counter : Counter.values()) {
+            summary.append("\n  ").append(counter.name().toLowerCase().replace('_', '-')).append(": ").append(counter.value.sum());
+        }
+        for (Map.Entry<String, StageTiming> entry : getTimings().entrySet()) {
+            summary.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return summary.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (Counter counter : Counter.values()) {
+            counter.value.reset();
+        }
+        stages.clear();
+    }
+
+    private static final class Stage {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface for the metrics collected by Fakereplace. It is registered as
+ * <code>org.fakereplace:type=Metrics</code> when metrics are enabled.
+ *
+ * @author Stuart Douglas
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return the number of classes that have been passed to the transformer
+     */
+    long getClassesSeen();
+
+    /**
+     * @return the number of classes that were skipped because the index says they do not need to be modified
+     */
+    long getClassesSkipped();
+
+    long getClassesModified();
+
+    long getClassesRetransformed();
+
+    long getClassesRedefined();
+
+    /**
+     * @return the timings of each stage, keyed by stage name. Transformers, manipulators and class change listeners
+     * are recorded under their class names.
+     */
+    Map<String, StageTiming> getTimings();
+
+    /**
+     * @return a human readable summary of all the metrics
+     */
+    String getSummary();
+
+    void reset();
+}
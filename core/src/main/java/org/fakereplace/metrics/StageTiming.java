@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The accumulated timings of a single stage
+ *
+ * @author Stuart Douglas
+ */
+public final class StageTiming {
+
+    private final long count;
+    private final long totalNanos;
+    private final long maxNanos;
+
+    @ConstructorProperties({"count", "totalNanos", "maxNanos"})
+    public StageTiming(long count, long totalNanos, long maxNanos) {
+        this.count = count;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count +
+                ", total=" + totalNanos / 1000000 + "ms" +
+                ", mean=" + (count == 0 ? 0 : totalNanos / count / 1000) + "us" +
+                ", max=" + maxNanos / 1000 + "us";
+    }
+}
@@ -18,128 +18,50 @@
 package org.fakereplace.reflection;
 
 import java.lang.annotation.Annotation;
-import java.lang.annotation.Inherited;
 import java.lang.reflect.AnnotatedElement;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 
 import org.fakereplace.data.AnnotationDataStore;
+import org.fakereplace.data.ClassDataStore;
 import org.fakereplace.data.ModifiedMethod;
 
 public class AnnotationReflection {
 
-    private static boolean heiracheyChanged(Class<?> clazz) {
-        Class<?> c = clazz;
-        while (c != Object.class && c != null) {
-            if (AnnotationDataStore.isClassDataRecorded(c)) {
-                return true;
-            }
-            c = c.getSuperclass();
-        }
-        return false;
-    }
-
     public static boolean isAnnotationPresent(Class<?> clazz, Class<? extends Annotation> anType) {
-        if (anType.isAnnotationPresent(Inherited.class) && heiracheyChanged(clazz)) {
-            Class<?> c = clazz;
-            while (c != null && c != Object.class) {
-                if (AnnotationDataStore.isClassDataRecorded(c)) {
-                    if (AnnotationDataStore.isClassAnnotationPresent(c, anType)) {
-                        return true;
-                    }
-                } else {
-                    // can't just use getAnnotation, as an inherited annotation
-                    // may have been removed from a parent class
-                    Annotation[] declared = c.getDeclaredAnnotations();
-                    for (Annotation a : declared) {
-                        if (a.annotationType() == anType) {
-                            return true;
-                        }
-                    }
-                }
-                c = c.getSuperclass();
-            }
-            return false;
-        } else if (AnnotationDataStore.isClassDataRecorded(clazz)) {
-            return AnnotationDataStore.isClassAnnotationPresent(clazz, anType);
+        ClassAnnotationView view = ClassAnnotationView.of(clazz);
+        if (view.isHierarchyChanged()) {
+            return view.isAnnotationPresent(anType);
         }
         return clazz.isAnnotationPresent(anType);
     }
 
     public static Annotation getAnnotation(Class<?> clazz, Class<? extends Annotation> anType) {
-        if (anType.isAnnotationPresent(Inherited.class) && heiracheyChanged(clazz)) {
-            Annotation result = null;
-            Class<?> c = clazz;
-            while (result == null && c != null && c != Object.class) {
-                if (AnnotationDataStore.isClassDataRecorded(c)) {
-                    result = AnnotationDataStore.getClassAnnotation(c, anType);
-                } else {
-                    // can't just use getAnnotation, as an inherited annotation
-                    // may have been removed from a parent class
-                    Annotation[] declared = c.getDeclaredAnnotations();
-                    for (Annotation a : declared) {
-                        if (a.annotationType() == anType) {
-                            result = a;
-                            break;
-                        }
-                    }
-                }
-                c = c.getSuperclass();
-            }
-            return result;
-        } else if (AnnotationDataStore.isClassDataRecorded(clazz)) {
-            return AnnotationDataStore.getClassAnnotation(clazz, anType);
+        ClassAnnotationView view = ClassAnnotationView.of(clazz);
+        if (view.isHierarchyChanged()) {
+            return view.getAnnotation(anType);
         }
         return clazz.getAnnotation(anType);
     }
 
     public static Annotation[] getAnnotations(Class<?> clazz) {
-        if (heiracheyChanged(clazz)) {
-            Annotation[] pres;
-            if (AnnotationDataStore.isClassDataRecorded(clazz)) {
-                pres = AnnotationDataStore.getClassAnnotations(clazz);
-            } else {
-                pres = clazz.getDeclaredAnnotations();
-            }
-            List<Annotation> result = new ArrayList<>();
-            result.addAll(Arrays.asList(pres));
-            Class<?> c = clazz.getSuperclass();
-            while (c != Object.class && c != null) {
-                if (AnnotationDataStore.isClassDataRecorded(c)) {
-                    pres = AnnotationDataStore.getClassAnnotations(c);
-                } else {
-                    pres = c.getDeclaredAnnotations();
-                }
-                for (Annotation a : pres) {
-                    if (a.annotationType().isAnnotationPresent(Inherited.class)) {
-                        result.add(a);
-                    }
-                }
-                c = c.getSuperclass();
-            }
-            Annotation[] ret = new Annotation[result.size()];
-            int count = 0;
-            for (Annotation a : result) {
-                ret[count++] = a;
-            }
-            return ret;
+        ClassAnnotationView view = ClassAnnotationView.of(clazz);
+        if (view.isHierarchyChanged()) {
+            return view.getAnnotations();
         }
         return clazz.getAnnotations();
     }
 
     public static Annotation[] getDeclaredAnnotations(Class<?> clazz) {
-        if (AnnotationDataStore.isClassDataRecorded(clazz)) {
+        if (isRecorded(clazz)) {
             return AnnotationDataStore.getClassAnnotations(clazz);
         }
         return clazz.getDeclaredAnnotations();
     }
 
     public static boolean isAnnotationPresent(Field clazz, Class<? extends Annotation> anType) {
-        if (AnnotationDataStore.isFieldDataRecorded(clazz)) {
+        if (isRecorded(clazz)) {
 
             return AnnotationDataStore.isFieldAnnotationPresent(clazz, anType);
         }
@@ -147,7 +69,7 @@ public class AnnotationReflection {
     }
 
     public static Annotation getAnnotation(Field clazz, Class<? extends Annotation> anType) {
-        if (AnnotationDataStore.isFieldDataRecorded(clazz)) {
+        if (isRecorded(clazz)) {
 
             return AnnotationDataStore.getFieldAnnotation(clazz, anType);
         }
@@ -155,21 +77,21 @@ public class AnnotationReflection {
     }
 
     public static Annotation[] getAnnotations(Field clazz) {
-        if (AnnotationDataStore.isFieldDataRecorded(clazz)) {
+        if (isRecorded(clazz)) {
             return AnnotationDataStore.getFieldAnnotations(clazz);
         }
         return clazz.getAnnotations();
     }
 
     public static Annotation[] getDeclaredAnnotations(Field clazz) {
-        if (AnnotationDataStore.isFieldDataRecorded(clazz)) {
+        if (isRecorded(clazz)) {
             return AnnotationDataStore.getFieldAnnotations(clazz);
         }
         return clazz.getDeclaredAnnotations();
     }
 
     public static boolean isAnnotationPresent(Method clazz, Class<? extends Annotation> anType) {
-        if (AnnotationDataStore.isMethodDataRecorded(clazz)) {
+        if (isRecorded(clazz)) {
 
             return AnnotationDataStore.isMethodAnnotationPresent(clazz, anType);
         }
@@ -177,7 +99,7 @@ public class AnnotationReflection {
     }
 
     public static Annotation getAnnotation(Method clazz, Class<? extends Annotation> anType) {
-        if (AnnotationDataStore.isMethodDataRecorded(clazz)) {
+        if (isRecorded(clazz)) {
 
             return AnnotationDataStore.getMethodAnnotation(clazz, anType);
         }
@@ -185,7 +107,7 @@ public class AnnotationReflection {
     }
 
     public static Annotation[] getAnnotations(Method clazz) {
-        if (AnnotationDataStore.isMethodDataRecorded(clazz)) {
+        if (isRecorded(clazz)) {
             Annotation[] result = AnnotationDataStore.getMethodAnnotations(clazz);
 
             int rc = 0;
@@ -224,7 +146,7 @@ public class AnnotationReflection {
     }
 
     public static Annotation[] getDeclaredAnnotations(Method clazz) {
-        if (AnnotationDataStore.isMethodDataRecorded(clazz)) {
+        if (isRecorded(clazz)) {
             Annotation[] result = AnnotationDataStore.getMethodAnnotations(clazz);
 
             int rc = 0;
@@ -263,7 +185,7 @@ public class AnnotationReflection {
     }
 
     public static Annotation[][] getParameterAnnotations(Method clazz) {
-        if (AnnotationDataStore.isMethodDataRecorded(clazz)) {
+        if (isRecorded(clazz)) {
             return AnnotationDataStore.getMethodParameterAnnotations(clazz);
         }
         return clazz.getParameterAnnotations();
@@ -272,7 +194,7 @@ public class AnnotationReflection {
     // constructors
 
     public static boolean isAnnotationPresent(Constructor<?> clazz, Class<? extends Annotation> anType) {
-        if (AnnotationDataStore.isConstructorDataRecorded(clazz)) {
+        if (isRecorded(clazz)) {
 
             return AnnotationDataStore.isConstructorAnnotationPresent(clazz, anType);
         }
@@ -280,7 +202,7 @@ public class AnnotationReflection {
     }
 
     public static Annotation getAnnotation(Constructor<?> clazz, Class<? extends Annotation> anType) {
-        if (AnnotationDataStore.isConstructorDataRecorded(clazz)) {
+        if (isRecorded(clazz)) {
 
             return AnnotationDataStore.getConstructorAnnotation(clazz, anType);
         }
@@ -288,21 +210,21 @@ public class AnnotationReflection {
     }
 
     public static Annotation[] getAnnotations(Constructor<?> clazz) {
-        if (AnnotationDataStore.isConstructorDataRecorded(clazz)) {
+        if (isRecorded(clazz)) {
             return AnnotationDataStore.getConstructorAnnotations(clazz);
         }
         return clazz.getAnnotations();
     }
 
     public static Annotation[] getDeclaredAnnotations(Constructor<?> clazz) {
-        if (AnnotationDataStore.isConstructorDataRecorded(clazz)) {
+        if (isRecorded(clazz)) {
             return AnnotationDataStore.getConstructorAnnotations(clazz);
         }
         return clazz.getDeclaredAnnotations();
     }
 
     public static Annotation[][] getParameterAnnotations(Constructor<?> clazz) {
-        if (AnnotationDataStore.isConstructorDataRecorded(clazz)) {
+        if (isRecorded(clazz)) {
             return AnnotationDataStore.getMethodParameterAnnotations(clazz);
         }
         return clazz.getParameterAnnotations();
@@ -362,4 +284,23 @@ public class AnnotationReflection {
         return clazz.getDeclaredAnnotations();
     }
 
+    /*
+     * annotation data is only ever recorded for members of classes that have been replaced, so for everything else we
+     * can go straight to the JDK without looking in the annotation data store
+     */
+    private static boolean isRecorded(Class<?> clazz) {
+        return ClassDataStore.instance().isClassReplaced(clazz) && AnnotationDataStore.isClassDataRecorded(clazz);
+    }
+
+    private static boolean isRecorded(Field field) {
+        return ClassDataStore.instance().isClassReplaced(field.getDeclaringClass()) && AnnotationDataStore.isFieldDataRecorded(field);
+    }
+
+    private static boolean isRecorded(Method method) {
+        return ClassDataStore.instance().isClassReplaced(method.getDeclaringClass()) && AnnotationDataStore.isMethodDataRecorded(method);
+    }
+
+    private static boolean isRecorded(Constructor<?> constructor) {
+        return ClassDataStore.instance().isClassReplaced(constructor.getDeclaringClass()) && AnnotationDataStore.isConstructorDataRecorded(constructor);
+    }
 }
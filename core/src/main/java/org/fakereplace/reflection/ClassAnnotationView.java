@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.reflection;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.Inherited;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.fakereplace.data.AnnotationDataStore;
+import org.fakereplace.data.ClassDataStore;
+
+/**
+ * The merged class level annotations of a class, taking into account annotations that have been changed on the class
+ * itself or on any of its superclasses.
+ * <p>
+ * Views are cached per class, and are discarded whenever class annotations are recorded for any class, as a change to
+ * an ancestor affects the inherited annotations of all its subclasses.
+ *
+ * @author Stuart Douglas
+ */
+final class ClassAnnotationView {
+
+    private static final ClassValue<ClassAnnotationView> VIEWS = new ClassValue<ClassAnnotationView>() {
+        @Override
+        protected ClassAnnotationView computeValue(Class<?> type) {
+            return new ClassAnnotationView(type);
+        }
+    };
+
+    /**
+     * view used before any class has been replaced, when the JDK can answer every query
+     */
+    private static final ClassAnnotationView UNCHANGED = new ClassAnnotationView();
+
+    private final int version;
+    private final boolean hierarchyChanged;
+    private final Annotation[] annotations;
+    private final Map<Class<? extends Annotation>, Annotation> annotationsByType;
+
+    private ClassAnnotationView() {
+        version = -1;
+        hierarchyChanged = false;
+        annotations = null;
+        annotationsByType = Collections.emptyMap();
+    }
+
+    private ClassAnnotationView(Class<?> clazz) {
+        //read the version first, if annotations are recorded while we are building the view it will just be rebuilt
+        version = AnnotationDataStore.getClassAnnotationsVersion();
+        hierarchyChanged = hierarchyChanged(clazz);
+        if (!hierarchyChanged) {
+            annotations = null;
+            annotationsByType = Collections.emptyMap();
+            return;
+        }
+        final Map<Class<? extends Annotation>, Annotation> byType = new HashMap<>();
+        final List<Annotation> result = new ArrayList<>();
+        for (Annotation a : declaredAnnotations(clazz)) {
+            byType.put(a.annotationType(), a);
+            result.add(a);
+        }
+        Class<?> c = clazz.getSuperclass();
+        while (c != null && c != Object.class) {
+            // can't just use getAnnotations, as an inherited annotation
+            // may have been removed from a parent class
+            for (Annotation a : declaredAnnotations(c)) {
+                if (a.annotationType().isAnnotationPresent(Inherited.class) && !byType.containsKey(a.annotationType())) {
+                    byType.put(a.annotationType(), a);
+                    result.add(a);
+                }
+            }
+            c = c.getSuperclass();
+        }
+        annotations = result.toArray(new Annotation[result.size()]);
+        annotationsByType = byType;
+    }
+
+    static ClassAnnotationView of(Class<?> clazz) {
+        if (!ClassDataStore.instance().isAnyClassReplaced()) {
+            return UNCHANGED;
+        }
+        ClassAnnotationView view = VIEWS.get(clazz);
+        if (view.version != AnnotationDataStore.getClassAnnotationsVersion()) {
+            VIEWS.remove(clazz);
+            view = VIEWS.get(clazz);
+        }
+        return view;
+    }
+
+    private static boolean hierarchyChanged(Class<?> clazz) {
+        Class<?> c = clazz;
+        while (c != Object.class && c != null) {
+            if (AnnotationDataStore.isClassDataRecorded(c)) {
+                return true;
+            }
+            c = c.getSuperclass();
+        }
+        return false;
+    }
+
+    private static Annotation[] declaredAnnotations(Class<?> clazz) {
+        if (AnnotationDataStore.isClassDataRecorded(clazz)) {
+            return AnnotationDataStore.getClassAnnotations(clazz);
+        }
+        return clazz.getDeclaredAnnotations();
+    }
+
+    /**
+     * @return <code>true</code> if annotations have been recorded for this class or any of its superclasses. If this
+     * is <code>false</code> the JDK can answer all queries for this class directly
+     */
+    boolean isHierarchyChanged() {
+        return hierarchyChanged;
+    }
+
+    Annotation getAnnotation(Class<? extends Annotation> anType) {
+        return annotationsByType.get(anType);
+    }
+
+    boolean isAnnotationPresent(Class<? extends Annotation> anType) {
+        return annotationsByType.containsKey(anType);
+    }
+
+    Annotation[] getAnnotations() {
+        return annotations.clone();
+    }
+}
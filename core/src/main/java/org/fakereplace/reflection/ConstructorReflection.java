@@ -17,6 +17,9 @@
 
 package org.fakereplace.reflection;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Modifier;
@@ -35,27 +38,55 @@ import javassist.bytecode.Descriptor;
 
 public class ConstructorReflection {
 
+    private static final Object[] EMPTY_ARGS = new Object[0];
+
+    private static final MethodType ADDED_CONSTRUCTOR_TYPE = MethodType.methodType(Object.class, int.class, Object[].class, ConstructorArgument.class);
+
+    /**
+     * The constructor that is added to every replaceable class to call added constructors, this is cleared
+     * when the class is redefined
+     */
+    private static final ClassValue<MethodHandle> ADDED_CONSTRUCTORS = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            try {
+                final Constructor<?> constructor = type.getConstructor(int.class, Object[].class, ConstructorArgument.class);
+                return MethodHandles.publicLookup().unreflectConstructor(constructor).asType(ADDED_CONSTRUCTOR_TYPE);
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
     @SuppressWarnings("restriction")
     public static Object newInstance(Constructor<?> method, Object... args) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException, InstantiationException {
         final MethodData data = ClassDataStore.instance().getMethodInformation(method.getDeclaringClass().getName());
         final Class<?> info = ClassDataStore.instance().getRealClassFromProxyName(method.getDeclaringClass().getName());
+        final MethodHandle invoke = ADDED_CONSTRUCTORS.get(info);
+        if (!Modifier.isPublic(method.getModifiers()) && !method.isAccessible()) {
+            Class<?> caller = AccessVerification.getCallerClass(2);
+            AccessVerification.ensureMemberAccess(caller, method.getDeclaringClass(), method.getModifiers());
+        }
+        final Object[] arguments = args == null ? EMPTY_ARGS : args;
         try {
-            final Constructor<?> invoke = info.getConstructor(int.class, Object[].class, ConstructorArgument.class);
-            Object ar = args;
-            if (ar == null) {
-                ar = new Object[0];
-            }
-            if (!Modifier.isPublic(method.getModifiers()) && !method.isAccessible()) {
-                Class<?> caller = AccessVerification.getCallerClass(2);
-                AccessVerification.ensureMemberAccess(caller, method.getDeclaringClass(), method.getModifiers());
-            }
-            return invoke.newInstance(data.getMethodNo(), ar, null);
-        } catch (NoSuchMethodException | SecurityException e) {
-            throw new RuntimeException(e);
+            return (Object) invoke.invokeExact(data.getMethodNo(), arguments, (ConstructorArgument) null);
+        } catch (Throwable e) {
+            // to match Constructor.newInstance
+            throw new InvocationTargetException(e);
         }
     }
 
+    /**
+     * Clears the cached added constructor for a class that is being redefined
+     */
+    public static void clearAddedConstructor(Class<?> clazz) {
+        ADDED_CONSTRUCTORS.remove(clazz);
+    }
+
     public static Constructor<?>[] getDeclaredConstructors(Class<?> clazz) {
+        if (!ClassDataStore.instance().isClassReplaceable(clazz)) {
+            return clazz.getDeclaredConstructors();
+        }
         try {
             ClassData cd = ClassDataStore.instance().getModifiedClassData(clazz.getClassLoader(), Descriptor.toJvmName(clazz.getName()));
 
@@ -92,6 +123,9 @@ public class ConstructorReflection {
     }
 
     public static Constructor<?>[] getConstructors(Class<?> clazz) {
+        if (!ClassDataStore.instance().isClassReplaceable(clazz)) {
+            return clazz.getConstructors();
+        }
         try {
             ClassData cd = ClassDataStore.instance().getModifiedClassData(clazz.getClassLoader(), Descriptor.toJvmName(clazz.getName()));
 
@@ -134,7 +168,9 @@ public class ConstructorReflection {
     }
 
     public static Constructor<?> getConstructor(Class<?> clazz, Class<?>... parameters) throws NoSuchMethodException {
-
+        if (!ClassDataStore.instance().isClassReplaceable(clazz)) {
+            return clazz.getConstructor(parameters);
+        }
         ClassData cd = ClassDataStore.instance().getModifiedClassData(clazz.getClassLoader(), Descriptor.toJvmName(clazz.getName()));
 
         if (cd == null || !cd.isReplaceable()) {
@@ -163,7 +199,9 @@ public class ConstructorReflection {
     }
 
     public static Constructor<?> getDeclaredConstructor(Class<?> clazz, Class<?>... parameters) throws NoSuchMethodException {
-
+        if (!ClassDataStore.instance().isClassReplaceable(clazz)) {
+            return clazz.getDeclaredConstructor(parameters);
+        }
         ClassData cd = ClassDataStore.instance().getModifiedClassData(clazz.getClassLoader(), Descriptor.toJvmName(clazz.getName()));
 
         if (cd == null || !cd.isReplaceable()) {
@@ -81,6 +81,9 @@ public class MethodReflection {
     }
 
     public static Method[] getDeclaredMethods(Class<?> clazz) {
+        if (!ClassDataStore.instance().isClassReplaceable(clazz)) {
+            return clazz.getDeclaredMethods();
+        }
         try {
             ClassData cd = ClassDataStore.instance().getModifiedClassData(clazz.getClassLoader(), Descriptor.toJvmName(clazz.getName()));
 
@@ -115,6 +118,9 @@ public class MethodReflection {
     }
 
     public static Method[] getMethods(Class<?> clazz) {
+        if (!ClassDataStore.instance().isClassReplaceable(clazz)) {
+            return clazz.getMethods();
+        }
         try {
             ClassData cd = ClassDataStore.instance().getModifiedClassData(clazz.getClassLoader(), Descriptor.toJvmName(clazz.getName()));
 
@@ -158,6 +164,9 @@ public class MethodReflection {
     }
 
     public static Method getMethod(Class<?> clazz, String name, Class<?>... parameters) throws NoSuchMethodException {
+        if (!ClassDataStore.instance().isClassReplaceable(clazz)) {
+            return clazz.getMethod(name, parameters);
+        }
 
         ClassData cd = ClassDataStore.instance().getModifiedClassData(clazz.getClassLoader(), Descriptor.toJvmName(clazz.getName()));
 
@@ -199,6 +208,9 @@ public class MethodReflection {
     }
 
     public static Method getDeclaredMethod(Class<?> clazz, String name, Class<?>... parameters) throws NoSuchMethodException {
+        if (!ClassDataStore.instance().isClassReplaceable(clazz)) {
+            return clazz.getDeclaredMethod(name, parameters);
+        }
         ClassData cd = ClassDataStore.instance().getModifiedClassData(clazz.getClassLoader(), Descriptor.toJvmName(clazz.getName()));
         if (cd == null || !cd.isReplaceable()) {
             return clazz.getDeclaredMethod(name, parameters);
@@ -35,6 +35,11 @@ import javassist.bytecode.MethodInfo;
  */
 public class AnnotationTransformer implements FakereplaceTransformer {
 
+    @Override
+    public boolean isStructuralTransformer() {
+        return true;
+    }
+
     @Override
     public boolean transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, ClassFile file, Set<Class<?>> classesToRetransform, ChangedClassImpl changedClass, Set<MethodInfo> modifiedMethods) throws IllegalClassFormatException, BadBytecode, DuplicateMemberException {
         if(classBeingRedefined != null) {
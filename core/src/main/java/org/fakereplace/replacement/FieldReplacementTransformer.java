@@ -107,6 +107,11 @@ public class FieldReplacementTransformer implements FakereplaceTransformer {
 
     }
 
+    @Override
+    public boolean isStructuralTransformer() {
+        return true;
+    }
+
     @Override
     public boolean transform(ClassLoader loader, String className, Class<?> oldClass, ProtectionDomain protectionDomain, ClassFile file, Set<Class<?>> classesToRetransform, ChangedClassImpl changedClass, Set<MethodInfo> modifiedMethods) throws IllegalClassFormatException, BadBytecode, DuplicateMemberException {
         if (oldClass == null || className == null) {
@@ -181,7 +186,7 @@ public class FieldReplacementTransformer implements FakereplaceTransformer {
                 }
             }
         }
-        ClassDataStore.instance().modifyCurrentData(loader, file.getName(), (builder) -> {
+        ClassDataStore.instance().modifyPendingData(loader, file.getName(), (builder) -> {
             for (FieldProxyInfo field : toAdd) {
                 builder.addFakeField(field.fieldData, field.proxyName, field.modifiers);
             }
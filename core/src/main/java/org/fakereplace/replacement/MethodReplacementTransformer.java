@@ -235,6 +235,19 @@ public class MethodReplacementTransformer implements FakereplaceTransformer {
 
     }
 
+    /**
+     * Classes that were transformed before the method was added may have lambdas that refer to it, e.g. if they
+     * were redefined before this class in the same redefinition. They are retransformed so their bootstrap
+     * methods are pointed at the proxy for the added method.
+     */
+    private static void addLambdaHosts(ClassFile file, ClassLoader loader, MethodInfo method, Class<?> oldClass, Set<Class<?>> classesToRetransform) {
+        for (Class<?> host : Transformer.getManipulator().getLambdaHosts(file.getName(), method.getName(), method.getDescriptor(), loader)) {
+            if (host != oldClass) {
+                classesToRetransform.add(host);
+            }
+        }
+    }
+
     /**
      * Adds a method to a class
      */
@@ -584,6 +597,11 @@ public class MethodReplacementTransformer implements FakereplaceTransformer {
 
     }
 
+    @Override
+    public boolean isStructuralTransformer() {
+        return true;
+    }
+
     @Override
     public boolean transform(ClassLoader loader, String className, Class<?> oldClass, ProtectionDomain protectionDomain, ClassFile file, Set<Class<?>> classesToRetransform, ChangedClassImpl changedClass, Set<MethodInfo> modifiedMethods) throws IllegalClassFormatException, BadBytecode, DuplicateMemberException {
         if(oldClass == null || className == null) {
@@ -727,6 +745,7 @@ public class MethodReplacementTransformer implements FakereplaceTransformer {
                     if (c != null) {
                         classesToRetransform.add(c);
                     }
+                    addLambdaHosts(file, loader, m, oldClass, classesToRetransform);
                 } else if ((m.getName().equals("<init>"))) {
                     addConstructor(file, loader, m, constructorsToAdd, constructorCodeAttribute, oldClass);
                 } else if (m.getName().equals("<clinit>")) {
@@ -736,6 +755,7 @@ public class MethodReplacementTransformer implements FakereplaceTransformer {
                     if (c != null) {
                         classesToRetransform.add(c);
                     }
+                    addLambdaHosts(file, loader, m, oldClass, classesToRetransform);
                 }
                 if (!upgradedVisibility) {
                     it.remove();
@@ -759,7 +779,7 @@ public class MethodReplacementTransformer implements FakereplaceTransformer {
             }
         }
 
-        ClassDataStore.instance().modifyCurrentData(loader, className, (builder) -> {
+        ClassDataStore.instance().modifyPendingData(loader, className, (builder) -> {
             for(MethodData method : methodsToRemove) {
                 builder.removeMethod(method);
             }
@@ -34,9 +34,15 @@ public class ChangedClassImpl implements ChangedClass {
 
     private final Map<Class<? extends Annotation>, Set<ChangedAnnotation>> changedAnnotationsByType = new HashMap<>();
     private final Class<?> changedClass;
+    private final boolean bodyOnlyChange;
 
     public ChangedClassImpl(final Class<?> changedClass) {
+        this(changedClass, false);
+    }
+
+    public ChangedClassImpl(final Class<?> changedClass, final boolean bodyOnlyChange) {
         this.changedClass = changedClass;
+        this.bodyOnlyChange = bodyOnlyChange;
     }
 
     /**
@@ -59,6 +65,18 @@ public class ChangedClassImpl implements ChangedClass {
         return changedClass;
     }
 
+    /**
+     * @return the types of all the class level annotations that were changed
+     */
+    public Set<Class<? extends Annotation>> getChangedAnnotationTypes() {
+        return Collections.unmodifiableSet(changedAnnotationsByType.keySet());
+    }
+
+    @Override
+    public boolean isBodyOnlyChange() {
+        return bodyOnlyChange;
+    }
+
     public void changeClassAnnotation(final ChangedAnnotation annotation) {
         changedAnnotation(annotation);
     }
@@ -74,6 +92,7 @@ public class ChangedClassImpl implements ChangedClass {
         return "ChangedClassImpl{" +
                 ", changedAnnotationsByType=" + changedAnnotationsByType +
                 ", changedClass=" + changedClass +
+                ", bodyOnlyChange=" + bodyOnlyChange +
                 '}';
     }
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javassist.bytecode.ClassFile;
+
+/**
+ * Reads and writes class files using per thread buffers.
+ * <p>
+ * Writing a class through a plain {@link ByteArrayOutputStream} grows and copies the array several times, and then
+ * copies it again to produce the result. Here the output buffer is kept between calls and sized from the original
+ * class, so once a thread has warmed up the only allocation is the returned array.
+ * <p>
+ * Class loading can happen while a class is being read or written, and that can re-enter the transformer on the same
+ * thread. Nested calls fall back to fresh buffers.
+ *
+ * @author Stuart Douglas
+ */
+public final class ClassFileBytes {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * buffers larger than this are not kept once they have been used
+     */
+    private static final int MAX_RETAINED_SIZE = 1 << 20;
+
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    private ClassFileBytes() {
+    }
+
+    public static ClassFile read(byte[] data) throws IOException {
+        final Buffers buffers = BUFFERS.get();
+        if (buffers.reading) {
+            return new ClassFile(new DataInputStream(new ByteArrayInputStream(data)));
+        }
+        buffers.reading = true;
+        try {
+            buffers.in.setData(data);
+            return new ClassFile(buffers.dataIn);
+        } finally {
+            buffers.in.setData(EMPTY);
+            buffers.reading = false;
+        }
+    }
+
+    /**
+     * @param sizeHint the expected size of the class, usually the size of the class it was read from
+     */
+    public static byte[] write(ClassFile file, int sizeHint) throws IOException {
+        final Buffers buffers = BUFFERS.get();
+        // leave some room for anything that was added to the class
+        final int estimate = sizeHint + (sizeHint >> 2) + 256;
+        if (buffers.writing) {
+            final OutputBuffer out = new OutputBuffer(estimate);
+            file.write(new DataOutputStream(out));
+            return out.toByteArray();
+        }
+        buffers.writing = true;
+        try {
+            final OutputBuffer out = buffers.out;
+            out.reset();
+            out.ensureCapacity(estimate);
+            file.write(buffers.dataOut);
+            final byte[] result = out.toByteArray();
+            if (out.capacity() > MAX_RETAINED_SIZE) {
+                buffers.out = new OutputBuffer(0);
+                buffers.dataOut = new DataOutputStream(buffers.out);
+            }
+            return result;
+        } finally {
+            buffers.writing = false;
+        }
+    }
+
+    private static final class Buffers {
+        private final InputBuffer in = new InputBuffer();
+        private final DataInputStream dataIn = new DataInputStream(in);
+        private OutputBuffer out = new OutputBuffer(0);
+        private DataOutputStream dataOut = new DataOutputStream(out);
+        private boolean reading;
+        private boolean writing;
+    }
+
+    private static final class InputBuffer extends ByteArrayInputStream {
+
+        private InputBuffer() {
+            super(EMPTY);
+        }
+
+        private void setData(byte[] data) {
+            this.buf = data;
+            this.pos = 0;
+            this.mark = 0;
+            this.count = data.length;
+        }
+    }
+
+    private static final class OutputBuffer extends ByteArrayOutputStream {
+
+        private OutputBuffer(int size) {
+            super(size);
+        }
+
+        private int capacity() {
+            return buf.length;
+        }
+
+        private void ensureCapacity(int size) {
+            if (buf.length < size) {
+                buf = new byte[size];
+            }
+        }
+
+        @Override
+        public byte[] toByteArray() {
+            // not synchronized, the buffer is only used by a single thread
+            return Arrays.copyOf(buf, count);
+        }
+    }
+}
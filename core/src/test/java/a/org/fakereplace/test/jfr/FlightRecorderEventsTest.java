@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.jfr;
+
+import org.fakereplace.metrics.FlightRecorderEvents;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Run with jfr=true, so the events are enabled by the agent for the whole JVM.
+ *
+ * @author Stuart Douglas
+ */
+public class FlightRecorderEventsTest {
+
+    @Test
+    public void testEventsCanBeCommitted() throws Exception {
+        Assume.assumeTrue(flightRecorderAvailable());
+        Assert.assertTrue(FlightRecorderEvents.isEnabled());
+
+        // start a recording so the events are actually populated and committed
+        final Object recording = Class.forName("jdk.jfr.Recording").getDeclaredConstructor().newInstance();
+        recording.getClass().getMethod("start").invoke(recording);
+        try {
+            final Object event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.CLASS_TRANSFORM);
+            Assert.assertNotNull(event);
+            Assert.assertEquals("org.fakereplace.metrics.jfr.ClassTransformEvent", event.getClass().getName());
+            FlightRecorderEvents.commit(event, "a.Class", "bootstrap", "Transformer", 10, 20);
+
+            final Object listenerEvent = FlightRecorderEvents.begin(FlightRecorderEvents.Type.CLASS_CHANGE_LISTENER);
+            FlightRecorderEvents.commit(listenerEvent, "a.Listener", 1, 0);
+        } finally {
+            recording.getClass().getMethod("close").invoke(recording);
+        }
+        // a failure to populate or commit an event disables them
+        Assert.assertTrue(FlightRecorderEvents.isEnabled());
+    }
+
+    private static boolean flightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
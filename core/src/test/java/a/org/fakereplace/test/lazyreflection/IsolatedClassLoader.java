@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.lazyreflection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * Defines a single class itself and hides its class file, so the class is neither visible to the test class
+ * loader nor considered replaceable.
+ *
+ * @author Stuart Douglas
+ */
+class IsolatedClassLoader extends ClassLoader {
+
+    private final String className;
+    private final String resourceName;
+
+    IsolatedClassLoader(ClassLoader parent, String className) {
+        super(parent);
+        this.className = className;
+        this.resourceName = className.replace('.', '/') + ".class";
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (!name.equals(className)) {
+            return super.loadClass(name, resolve);
+        }
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> c = findLoadedClass(name);
+            if (c == null) {
+                byte[] bytes = readClass();
+                c = defineClass(name, bytes, 0, bytes.length);
+            }
+            if (resolve) {
+                resolveClass(c);
+            }
+            return c;
+        }
+    }
+
+    @Override
+    public URL getResource(String name) {
+        if (name.equals(resourceName)) {
+            return null;
+        }
+        return super.getResource(name);
+    }
+
+    private byte[] readClass() throws ClassNotFoundException {
+        try (InputStream in = getParent().getResourceAsStream(resourceName)) {
+            if (in == null) {
+                throw new ClassNotFoundException(className);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new ClassNotFoundException(className, e);
+        }
+    }
+}
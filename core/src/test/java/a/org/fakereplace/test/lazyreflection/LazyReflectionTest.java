@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.lazyreflection;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import a.org.fakereplace.lazyreflection.FieldLookup;
+import a.org.fakereplace.test.util.ClassReplacer;
+
+/**
+ * Run with lazy-reflection=true. Field lookups in non-replaceable classes are not rewritten until the first
+ * replacement, after which classes in every class loader are retransformed in the background.
+ *
+ * @author Stuart Douglas
+ */
+public class LazyReflectionTest {
+
+    @Test
+    public void testSiblingLoaderSeesAddedFieldAfterReplacement() throws Exception {
+        ClassLoader loader = new IsolatedClassLoader(getClass().getClassLoader(), FieldLookup.class.getName());
+        Method lookup = loader.loadClass(FieldLookup.class.getName()).getMethod("hasDeclaredField", Class.class, String.class);
+        Assert.assertNotSame(FieldLookup.class, lookup.getDeclaringClass());
+        Assert.assertTrue((Boolean) lookup.invoke(null, FieldHolder.class, "value"));
+        Assert.assertFalse((Boolean) lookup.invoke(null, FieldHolder.class, "added"));
+
+        ClassReplacer r = new ClassReplacer();
+        r.queueClassForReplacement(FieldHolder.class, FieldHolder1.class);
+        r.replaceQueuedClasses();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!(Boolean) lookup.invoke(null, FieldHolder.class, "added")) {
+            if (System.nanoTime() > deadline) {
+                Assert.fail("Field added by replacement never became visible to a class in a sibling loader");
+            }
+            Thread.sleep(50);
+        }
+        Assert.assertTrue((Boolean) lookup.invoke(null, FieldHolder.class, "value"));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.metrics;
+
+import java.util.Map;
+
+import org.fakereplace.core.Transformer;
+import org.fakereplace.metrics.Metrics;
+import org.fakereplace.metrics.StageTiming;
+import org.junit.Assert;
+import org.junit.Test;
+import a.org.fakereplace.test.util.ClassReplacer;
+
+/**
+ * Run with metrics=true, so metrics are enabled by the agent for the whole JVM.
+ *
+ * @author Stuart Douglas
+ */
+public class MetricsTest {
+
+    @Test
+    public void testEnableIsIdempotent() {
+        Assert.assertTrue(Metrics.isEnabled());
+        Metrics.enable(0);
+        Metrics.enable(0);
+        int timers = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("Fakereplace metrics")) {
+                ++timers;
+            }
+        }
+        Assert.assertEquals(1, timers);
+    }
+
+    @Test
+    public void testRedefinitionIsRecorded() {
+        Assert.assertTrue(Metrics.isEnabled());
+        final long redefined = Metrics.instance().getClassesRedefined();
+        ClassReplacer r = new ClassReplacer();
+        r.queueClassForReplacement(MetricsRep.class, MetricsRep1.class);
+        r.replaceQueuedClasses();
+        Assert.assertEquals(1, new MetricsRep().value());
+
+        Assert.assertEquals(redefined + 1, Metrics.instance().getClassesRedefined());
+        Assert.assertTrue(Metrics.instance().getClassesSeen() > 0);
+        final Map<String, StageTiming> timings = Metrics.instance().getTimings();
+        Assert.assertTrue(timings.get(Metrics.REDEFINE).getCount() > 0);
+        Assert.assertTrue(timings.get(Metrics.TRANSFORM).getCount() > 0);
+        Assert.assertTrue(timings.containsKey(Transformer.class.getName()));
+        Assert.assertTrue(Metrics.instance().getSummary().contains("classes-redefined"));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.notification;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.fakereplace.api.ChangeSubscription;
+import org.fakereplace.api.ChangedClass;
+import org.fakereplace.api.ClassChangeAware;
+import org.fakereplace.api.NewClassData;
+import org.fakereplace.core.ClassChangeNotifier;
+import org.fakereplace.replacement.notification.ChangedClassImpl;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClassChangeNotifierTest {
+
+    private static final List<String> notified = new CopyOnWriteArrayList<>();
+
+    private static final List<Class<?>> subscribedChanges = new CopyOnWriteArrayList<>();
+
+    /**
+     * the notifier is global and the tests share a JVM, so the listeners have to be removed again
+     */
+    private final List<ClassChangeAware> registered = new CopyOnWriteArrayList<>();
+
+    @After
+    public void removeListeners() {
+        for (ClassChangeAware listener : registered) {
+            ClassChangeNotifier.instance().remove(listener);
+        }
+        notified.clear();
+        subscribedChanges.clear();
+    }
+
+    private void register(ClassChangeAware listener) {
+        registered.add(listener);
+        ClassChangeNotifier.instance().add(listener);
+    }
+
+    @Test
+    public void testListenersRunAfterTheirDependencies() {
+        register(new Dependent());
+        register(new Slow());
+        register(new Failing());
+        ClassChangeNotifier.instance().afterChange(Collections.emptyList(), Collections.emptyList());
+        Assert.assertEquals(3, notified.size());
+        Assert.assertEquals("dependent", notified.get(2));
+    }
+
+    @Test
+    public void testListenersOnlySeeSubscribedChanges() {
+        register(new Subscribed());
+        ClassChangeNotifier.instance().afterChange(Arrays.asList(new ChangedClassImpl(Unrelated.class), new ChangedClassImpl(Task.class)), Collections.emptyList());
+        Assert.assertEquals(Collections.singletonList(Task.class), subscribedChanges);
+
+        subscribedChanges.clear();
+        ClassChangeNotifier.instance().afterChange(Arrays.asList(new ChangedClassImpl(Unrelated.class), new ChangedClassImpl(Task.class, true)), Collections.emptyList());
+        Assert.assertTrue(subscribedChanges.isEmpty());
+    }
+
+    @Test
+    public void testRemovedListenersAreNotNotified() {
+        Failing listener = new Failing();
+        register(listener);
+        ClassChangeNotifier.instance().remove(listener);
+        ClassChangeNotifier.instance().afterChange(Collections.emptyList(), Collections.emptyList());
+        Assert.assertTrue(notified.isEmpty());
+    }
+
+    public static class Task implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+
+    public static class Unrelated {
+    }
+
+    public static class Subscribed implements ClassChangeAware {
+        @Override
+        public void afterChange(List<ChangedClass> changed, List<NewClassData> added) {
+            for (ChangedClass c : changed) {
+                subscribedChanges.add(c.getChangedClass());
+            }
+        }
+
+        @Override
+        public ChangeSubscription getSubscription() {
+            return ChangeSubscription.builder().subtypeOf(Runnable.class).ignoreBodyOnlyChanges().build();
+        }
+    }
+
+    public static class Slow implements ClassChangeAware {
+        @Override
+        public void afterChange(List<ChangedClass> changed, List<NewClassData> added) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            notified.add("slow");
+        }
+    }
+
+    public static class Failing implements ClassChangeAware {
+        @Override
+        public void afterChange(List<ChangedClass> changed, List<NewClassData> added) {
+            notified.add("failing");
+            throw new RuntimeException("expected failure");
+        }
+    }
+
+    public static class Dependent implements ClassChangeAware {
+        @Override
+        public void afterChange(List<ChangedClass> changed, List<NewClassData> added) {
+            notified.add("dependent");
+        }
+
+        @Override
+        public Set<String> getDependencies() {
+            return new HashSet<>(Arrays.asList(Slow.class.getName(), Failing.class.getName()));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.offheap;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.fakereplace.data.BaseClassData;
+import org.fakereplace.data.ClassDataStore;
+import org.fakereplace.data.FieldData;
+import org.fakereplace.data.MethodData;
+import org.junit.Assert;
+import org.junit.Test;
+import a.org.fakereplace.test.util.ClassReplacer;
+
+/**
+ * Run with off-heap-metadata=true, so the base data of replaceable classes is only kept on the heap while it is
+ * softly reachable.
+ *
+ * @author Stuart Douglas
+ */
+public class OffHeapMetadataTest {
+
+    @Test
+    public void testBaseClassDataIsDecodedAfterEviction() throws Exception {
+        OffHeapClass instance = new OffHeapClass();
+        Assert.assertEquals("hello", instance.hello());
+
+        // frameworks look up the members of every class, this must not pin the decoded data on the heap
+        Assert.assertTrue(OffHeapClass.class.getDeclaredMethods().length > 0);
+        Assert.assertNotNull(OffHeapClass.class.getDeclaredField("value"));
+        WeakReference<BaseClassData> first = new WeakReference<>(baseClassData());
+        WeakReference<MethodData> baseMethod = new WeakReference<>(first.get().getMethods().iterator().next());
+        WeakReference<MethodData> derivedMethod = new WeakReference<>(ClassDataStore.instance()
+                .getModifiedClassData(OffHeapClass.class.getClassLoader(), OffHeapClass.class.getName()).getMethods().iterator().next());
+        Assert.assertNotNull(first.get());
+        clearSoftReferences();
+        Assert.assertNull("decoded base class data was not evicted", first.get());
+        Assert.assertNull("decoded method data was not evicted", baseMethod.get());
+        Assert.assertNull("class data derived from the base data was not evicted", derivedMethod.get());
+
+        BaseClassData data = baseClassData();
+        Assert.assertEquals(OffHeapClass.class.getName(), data.getClassName());
+        Assert.assertEquals(Object.class.getName(), data.getSuperClassName());
+        Assert.assertTrue(data.isReplaceable());
+        Assert.assertTrue(hasMethod(data, "hello", "()Ljava/lang/String;"));
+        Assert.assertTrue(hasField(data, "value", "I"));
+
+        ClassReplacer r = new ClassReplacer();
+        r.queueClassForReplacement(OffHeapClass.class, OffHeapClass1.class);
+        r.replaceQueuedClasses();
+
+        Assert.assertEquals("added", instance.hello());
+        Assert.assertEquals("added", OffHeapClass.class.getMethod("added").invoke(instance));
+        Assert.assertNotNull(OffHeapClass.class.getField("addedValue"));
+        Assert.assertEquals(1, OffHeapClass.class.getField("value").getInt(instance));
+    }
+
+    private static BaseClassData baseClassData() {
+        return ClassDataStore.instance().getBaseClassData(OffHeapClass.class.getClassLoader(), OffHeapClass.class.getName());
+    }
+
+    private static boolean hasMethod(BaseClassData data, String name, String descriptor) {
+        for (MethodData method : data.getMethods()) {
+            if (method.getMethodName().equals(name) && method.getDescriptor().equals(descriptor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasField(BaseClassData data, String name, String type) {
+        for (FieldData field : data.getFields()) {
+            if (field.getName().equals(name) && field.getType().equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * soft references are guaranteed to be cleared before an OutOfMemoryError is thrown
+     */
+    private static void clearSoftReferences() {
+        List<byte[]> garbage = new ArrayList<>();
+        try {
+            while (true) {
+                garbage.add(new byte[1 << 20]);
+            }
+        } catch (OutOfMemoryError expected) {
+            garbage = null;
+        }
+        System.gc();
+    }
+}
@@ -17,6 +17,7 @@
 
 package a.org.fakereplace.test.replacement.annotated;
 
+import java.lang.annotation.ElementType;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 
@@ -97,4 +98,34 @@ public class AnnotatedClassTest {
         Assert.assertEquals("2", ar[1].value());
 
     }
+
+    @Test
+    public void testEnumA() throws SecurityException, NoSuchFieldException {
+        ClassReplacer rep = new ClassReplacer();
+        rep.queueClassForReplacement(EnumC.class, EnumC1.class);
+        rep.replaceQueuedClasses();
+        Field field = EnumC.class.getDeclaredField("field");
+        Assert.assertTrue(field.isAnnotationPresent(EnumA.class));
+        EnumA annotation = field.getAnnotation(EnumA.class);
+        Assert.assertEquals(ElementType.FIELD, annotation.value());
+        Assert.assertArrayEquals(new int[]{1, 2}, annotation.numbers());
+        Assert.assertEquals(EnumA.class, annotation.annotationType());
+
+        EnumA reference = EnumReference.class.getDeclaredField("field").getAnnotation(EnumA.class);
+        Assert.assertEquals(reference, annotation);
+        Assert.assertEquals(annotation, reference);
+        Assert.assertEquals(reference.hashCode(), annotation.hashCode());
+    }
+
+    @Test
+    public void testToStringQuotesStringsAndChars() throws NoSuchFieldException {
+        ClassReplacer rep = new ClassReplacer();
+        rep.queueClassForReplacement(QuotedC.class, QuotedC1.class);
+        rep.replaceQueuedClasses();
+        Field field = QuotedC.class.getDeclaredField("field");
+        Assert.assertEquals("@" + StringA.class.getName() + "(value=\"say \\\"hi\\\"\\n\")", field.getAnnotation(StringA.class).toString());
+        String charA = field.getAnnotation(CharA.class).toString();
+        Assert.assertTrue(charA, charA.contains("value='\\''"));
+        Assert.assertTrue(charA, charA.contains("names={\"a\\\\b\", \"\\u00e9\"}"));
+    }
 }
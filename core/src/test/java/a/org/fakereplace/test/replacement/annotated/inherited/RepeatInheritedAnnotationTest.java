@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.replacement.annotated.inherited;
+
+import org.junit.Assert;
+import org.junit.Test;
+import a.org.fakereplace.test.util.ClassReplacer;
+
+public class RepeatInheritedAnnotationTest {
+
+    /**
+     * tests that inherited annotations seen through a subclass are updated
+     * every time a superclass is replaced
+     */
+    @Test
+    public void testRepeatedReplacementOfSuperClass() {
+        Assert.assertEquals(1, RepeatInheritedGrandChild.class.getAnnotation(InheritedAnnotation.class).value());
+
+        ClassReplacer r = new ClassReplacer();
+        r.queueClassForReplacement(RepeatInheritedSuperClass.class, RepeatInheritedSuperClass1.class);
+        r.replaceQueuedClasses();
+
+        Assert.assertEquals(2, RepeatInheritedGrandChild.class.getAnnotation(InheritedAnnotation.class).value());
+        Assert.assertEquals(2, RepeatInheritedChild.class.getAnnotation(InheritedAnnotation.class).value());
+        Assert.assertEquals(1, RepeatInheritedGrandChild.class.getAnnotations().length);
+
+        r = new ClassReplacer();
+        r.queueClassForReplacement(RepeatInheritedSuperClass.class, RepeatInheritedSuperClass2.class);
+        r.replaceQueuedClasses();
+
+        Assert.assertEquals(3, RepeatInheritedGrandChild.class.getAnnotation(InheritedAnnotation.class).value());
+        Assert.assertTrue(RepeatInheritedGrandChild.class.isAnnotationPresent(InheritedAnnotation.class));
+        Assert.assertFalse(RepeatInheritedGrandChild.class.isAnnotationPresent(NotInheritedAnnotation.class));
+        Assert.assertTrue(RepeatInheritedSuperClass.class.isAnnotationPresent(NotInheritedAnnotation.class));
+        Assert.assertEquals(1, RepeatInheritedGrandChild.class.getAnnotations().length);
+        Assert.assertEquals(0, RepeatInheritedGrandChild.class.getDeclaredAnnotations().length);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.replacement.bodyonly;
+
+import java.lang.reflect.Method;
+
+import org.fakereplace.data.AnnotationDataStore;
+import org.junit.Assert;
+import org.junit.Test;
+import a.org.fakereplace.test.util.ClassReplacer;
+
+public class BodyOnlyReplacementTest {
+
+    @Test
+    public void testBodyOnlyReplacement() throws Exception {
+        ClassReplacer r = new ClassReplacer();
+        r.queueClassForReplacement(BodyOnlyClass.class, BodyOnlyClass1.class);
+        r.replaceQueuedClasses();
+
+        BodyOnlyClass instance = new BodyOnlyClass();
+        Assert.assertEquals("replaced", instance.value());
+        // the replacement transformers were skipped, so nothing was recorded for the class
+        Assert.assertFalse(AnnotationDataStore.isClassDataRecorded(BodyOnlyClass.class));
+        Assert.assertEquals("class", BodyOnlyClass.class.getAnnotation(BodyOnlyAnnotation.class).value());
+        Assert.assertEquals("method", BodyOnlyClass.class.getMethod("value").getAnnotation(BodyOnlyAnnotation.class).value());
+
+        // a structural change after a body only change still goes through the full replacement
+        r = new ClassReplacer();
+        r.queueClassForReplacement(BodyOnlyClass.class, BodyOnlyClass2.class);
+        r.replaceQueuedClasses();
+
+        instance = new BodyOnlyClass();
+        Assert.assertEquals("second", instance.value());
+        Method added = BodyOnlyClass.class.getMethod("added");
+        Assert.assertEquals("added", added.invoke(instance));
+        Assert.assertTrue(AnnotationDataStore.isClassDataRecorded(BodyOnlyClass.class));
+        Assert.assertEquals("field", BodyOnlyClass.class.getDeclaredField("field").getAnnotation(BodyOnlyAnnotation.class).value());
+    }
+}
@@ -17,6 +17,13 @@
 
 package a.org.fakereplace.test.replacement.lambda;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.fakereplace.api.ChangedClass;
+import org.fakereplace.api.ClassChangeAware;
+import org.fakereplace.api.NewClassData;
+import org.fakereplace.core.ClassChangeNotifier;
 import org.junit.Assert;
 import org.junit.Test;
 import a.org.fakereplace.test.util.ClassReplacer;
@@ -35,4 +42,36 @@ public class ClassWithLambdaTest {
         Assert.assertEquals("secondLambdaClass1", lc.getMessageProducer2().call());
     }
 
+    @Test
+    public void testLambdaReferencingMethodAddedInSameReplacement() {
+        Assert.assertEquals("original", LambdaCaller.getSupplier().get());
+        ChangeRecorder recorder = new ChangeRecorder();
+        ClassChangeNotifier.instance().add(recorder);
+        try {
+            ClassReplacer rep = new ClassReplacer();
+            // the caller is redefined before the method it references has been added
+            rep.queueClassForReplacement(LambdaCaller.class, LambdaCaller1.class);
+            rep.queueClassForReplacement(LambdaTarget.class, LambdaTarget1.class);
+            rep.replaceQueuedClasses();
+        } finally {
+            ClassChangeNotifier.instance().remove(recorder);
+        }
+        Assert.assertEquals("added", LambdaCaller.getSupplier().get());
+        // the caller is redefined twice, but it is still only one change
+        Assert.assertEquals(1, recorder.changed.stream().filter(c -> c == LambdaCaller.class).count());
+        Assert.assertEquals(1, recorder.changed.stream().filter(c -> c == LambdaTarget.class).count());
+    }
+
+    public static class ChangeRecorder implements ClassChangeAware {
+
+        private final List<Class<?>> changed = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void afterChange(List<ChangedClass> changed, List<NewClassData> added) {
+            for (ChangedClass c : changed) {
+                this.changed.add(c.getChangedClass());
+            }
+        }
+    }
+
 }
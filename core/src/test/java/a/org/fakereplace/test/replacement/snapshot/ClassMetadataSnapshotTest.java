@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.replacement.snapshot;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import org.fakereplace.api.ClassMetadataSnapshot;
+import org.fakereplace.core.ConstructorArgument;
+import org.junit.Assert;
+import org.junit.Test;
+import a.org.fakereplace.test.util.ClassReplacer;
+
+public class ClassMetadataSnapshotTest {
+
+    @Test
+    public void testSnapshotRebuiltAfterReplacement() throws NoSuchFieldException {
+        ClassMetadataSnapshot snapshot = ClassMetadataSnapshot.of(SnapshotClass.class);
+        Assert.assertSame(snapshot, ClassMetadataSnapshot.of(SnapshotClass.class));
+        Assert.assertEquals("class", ((SnapshotAnnotation) snapshot.getDeclaredAnnotations().get(0)).value());
+        Assert.assertEquals(1, snapshot.getDeclaredMethods().size());
+        Assert.assertEquals(1, snapshot.getDeclaredConstructors().size());
+
+        ClassReplacer r = new ClassReplacer();
+        r.queueClassForReplacement(SnapshotClass.class, SnapshotClass1.class);
+        r.replaceQueuedClasses();
+
+        Assert.assertFalse(snapshot.isCurrent());
+        ClassMetadataSnapshot replaced = ClassMetadataSnapshot.of(SnapshotClass.class);
+        Assert.assertNotSame(snapshot, replaced);
+        Assert.assertTrue(replaced.isCurrent());
+        Assert.assertEquals("class1", ((SnapshotAnnotation) replaced.getDeclaredAnnotations().get(0)).value());
+
+        Assert.assertEquals(2, replaced.getDeclaredMethods().size());
+        for (Method method : replaced.getDeclaredMethods()) {
+            if (method.getName().equals("method1")) {
+                Assert.assertTrue(replaced.getAnnotations(method).isEmpty());
+            } else {
+                Assert.assertEquals("method2", method.getName());
+                Assert.assertEquals("2", ((SnapshotAnnotation) replaced.getAnnotations(method).get(0)).value());
+            }
+        }
+        Field field = SnapshotClass.class.getDeclaredField("field");
+        Assert.assertEquals("field", ((SnapshotAnnotation) replaced.getAnnotations(field).get(0)).value());
+        for (Constructor<?> constructor : replaced.getDeclaredConstructors()) {
+            Class<?>[] params = constructor.getParameterTypes();
+            Assert.assertFalse(params.length == 3 && params[2] == ConstructorArgument.class);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.util;
+
+import org.fakereplace.data.InstanceTracker;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InstanceTrackerTest {
+
+    private static final String TYPE = InstanceTrackerTest.class.getName();
+
+    @Test
+    public void testInstancesAreTrackedByIdentity() {
+        // equal but different instances
+        final String first = new String("instance");
+        final String second = new String("instance");
+        InstanceTracker.add(TYPE, first);
+        InstanceTracker.add(TYPE, first);
+        InstanceTracker.add(TYPE, second);
+        Assert.assertEquals(2, InstanceTracker.get(TYPE).size());
+        Assert.assertTrue(InstanceTracker.get(TYPE + ".missing").isEmpty());
+        Assert.assertNotSame(first, second);
+    }
+}
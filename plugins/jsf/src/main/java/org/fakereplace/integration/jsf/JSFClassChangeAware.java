@@ -21,10 +21,12 @@ import java.beans.Introspector;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.fakereplace.api.ChangeSubscription;
 import org.fakereplace.api.ChangedClass;
 import org.fakereplace.api.ClassChangeAware;
 import org.fakereplace.api.NewClassData;
@@ -36,6 +38,22 @@ public class JSFClassChangeAware implements ClassChangeAware {
 
     private static final Logger log = Logger.getLogger(JSFClassChangeAware.class);
 
+    /**
+     * Weld has to have updated its beans before the EL caches are cleared
+     */
+    @Override
+    public Set<String> getDependencies() {
+        return Collections.singleton("org.fakereplace.integration.weld.WeldClassChangeAware");
+    }
+
+    /**
+     * The bean property caches are not affected by changes to method bodies
+     */
+    @Override
+    public ChangeSubscription getSubscription() {
+        return ChangeSubscription.builder().ignoreBodyOnlyChanges().build();
+    }
+
     private Field getField(Class<?> clazz, String name) throws NoSuchFieldException {
         if (clazz == Object.class)
             throw new NoSuchFieldException();
@@ -23,6 +23,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.fakereplace.api.ChangeSubscription;
 import org.fakereplace.api.ChangedClass;
 import org.fakereplace.api.ClassChangeAware;
 import org.fakereplace.api.NewClassData;
@@ -51,6 +52,14 @@ public class MetawidgetClassChangeAware implements ClassChangeAware {
         return getField(clazz.getSuperclass(), name);
     }
 
+    /**
+     * The action and properties caches are not affected by changes to method bodies
+     */
+    @Override
+    public ChangeSubscription getSubscription() {
+        return ChangeSubscription.builder().ignoreBodyOnlyChanges().build();
+    }
+
     /**
      * clear the action and properties caches
      */
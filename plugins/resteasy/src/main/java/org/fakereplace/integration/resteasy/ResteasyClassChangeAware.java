@@ -17,6 +17,7 @@
 
 package org.fakereplace.integration.resteasy;
 
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
@@ -26,6 +27,7 @@ import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.ws.rs.Path;
 
+import org.fakereplace.api.ChangeSubscription;
 import org.fakereplace.api.ChangedClass;
 import org.fakereplace.api.ClassChangeAware;
 import org.fakereplace.api.NewClassData;
@@ -38,6 +40,22 @@ public class ResteasyClassChangeAware implements ClassChangeAware {
     private static final String RESOURCES = "resteasy.scanned.resources";
     private final Logger logger = Logger.getLogger(ResteasyClassChangeAware.class);
 
+    /**
+     * Weld has to have updated its beans before RESTEasy is restarted
+     */
+    @Override
+    public Set<String> getDependencies() {
+        return Collections.singleton("org.fakereplace.integration.weld.WeldClassChangeAware");
+    }
+
+    /**
+     * RESTEasy only needs to be restarted if resources have been changed or added
+     */
+    @Override
+    public ChangeSubscription getSubscription() {
+        return ChangeSubscription.builder().annotatedWith(Path.class).build();
+    }
+
     @Override
     public void afterChange(final List<ChangedClass> changed, final List<NewClassData> added) {
         boolean requiresRestart = false;
@@ -27,6 +27,7 @@ import java.util.Set;
 import java.util.WeakHashMap;
 import javax.enterprise.inject.spi.Bean;
 
+import org.fakereplace.api.ChangeSubscription;
 import org.fakereplace.api.ChangedClass;
 import org.fakereplace.api.ClassChangeAware;
 import org.fakereplace.api.NewClassData;
@@ -39,6 +40,14 @@ public class WeldClassChangeAware implements ClassChangeAware {
      */
     private static final Map<Object, Object> proxyFactories = Collections.synchronizedMap(new WeakHashMap<>());
 
+    /**
+     * Proxies only need to be regenerated if the members of a bean type have changed
+     */
+    @Override
+    public ChangeSubscription getSubscription() {
+        return ChangeSubscription.builder().ignoreBodyOnlyChanges().build();
+    }
+
     @Override
     public void afterChange(List<ChangedClass> changed, List<NewClassData> added) {
         ClassLoader oldCl = null;
@@ -23,6 +23,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 import javax.persistence.Entity;
 
+import org.fakereplace.api.ChangeSubscription;
 import org.fakereplace.api.ChangedClass;
 import org.fakereplace.api.ClassChangeAware;
 import org.fakereplace.api.NewClassData;
@@ -43,6 +44,14 @@ import org.jboss.msc.service.StopContext;
  */
 public class WildflyHibernate5ClassChangeAware implements ClassChangeAware {
 
+    /**
+     * Only changes to entities require the persistence units to be restarted
+     */
+    @Override
+    public ChangeSubscription getSubscription() {
+        return ChangeSubscription.builder().annotatedWith(Entity.class).build();
+    }
+
     @Override
     public void afterChange(final List<ChangedClass> changed, final List<NewClassData> added) {
         boolean replace = false;